@@ -198,6 +198,28 @@ public class AutoGrader {
 	privilege.tcb.authorizeDestroy(currentThread);
     }
 
+    /**
+     * Notify the autograder that the current thread has finished a real-time
+     * job. <tt>KThread.sleep()</tt> calls this method when a thread with a
+     * deadline blocks, to count the job in the statistics.
+     *
+     * @param	metDeadline	<tt>true</tt> if the job finished by its
+     *				deadline.
+     */
+    public void jobFinished(boolean metDeadline) {
+	privilege.machine.countDeadline(metDeadline);
+    }
+
+    /**
+     * Add a report to print after the statistics when Nachos halts, such as
+     * the kernel's lock contention profile.
+     *
+     * @param	report	prints the report when run.
+     */
+    public void addStatsReport(Runnable report) {
+	privilege.machine.addStatsReport(report);
+    }
+
     /**
      * Notify the autograder that a timer interrupt occurred and was handled by
      * software if a timer interrupt handler was installed. Called by the
@@ -0,0 +1,469 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Assembles a class file holding a default constructor and one method, for
+ * code generated while Nachos runs.
+ *
+ * <p>
+ * The generated code is kept simple enough that one stack map frame
+ * describes every branch target: the operand stack is empty at every branch,
+ * and every local variable is assigned before the first branch and keeps its
+ * type. The frame is given to <tt>assemble()</tt>.
+ */
+final class ClassAssembler {
+    /**
+     * Allocate a new class assembler.
+     *
+     * @param	className	the internal name of the class, e.g.
+     *				<tt>nachos/machine/Foo</tt>.
+     * @param	interfaceName	the internal name of the interface the class
+     *				implements.
+     */
+    ClassAssembler(String className, String interfaceName) {
+	thisClass = classRef(className);
+	superClass = classRef("java/lang/Object");
+	this.interfaceClass = classRef(interfaceName);
+    }
+
+    /**
+     * Emit an instruction with no operands.
+     */
+    void op(int opcode) {
+	code.write(opcode);
+    }
+
+    /**
+     * Emit an instruction with a one-byte operand, such as a local variable
+     * index.
+     */
+    void op(int opcode, int operand) {
+	Lib.assertTrue(operand >= 0 && operand < 0x100);
+
+	code.write(opcode);
+	code.write(operand);
+    }
+
+    /**
+     * Push an <tt>int</tt> constant.
+     */
+    void iconst(int value) {
+	if (value >= -1 && value <= 5) {
+	    op(ICONST_0 + value);
+	}
+	else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+	    op(BIPUSH, value & 0xFF);
+	}
+	else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+	    op(SIPUSH);
+	    writeShort(value);
+	}
+	else {
+	    op(LDC_W);
+	    writeShort(intConst(value));
+	}
+    }
+
+    /**
+     * Push a <tt>long</tt> constant.
+     */
+    void lconst(long value) {
+	if (value == 0 || value == 1) {
+	    op(LCONST_0 + (int) value);
+	}
+	else {
+	    op(LDC2_W);
+	    writeShort(longConst(value));
+	}
+    }
+
+    /**
+     * Emit a <tt>getfield</tt> or <tt>putfield</tt>.
+     */
+    void field(int opcode, String owner, String name, String desc) {
+	op(opcode);
+	writeShort(memberRef(CONSTANT_Fieldref, owner, name, desc));
+    }
+
+    /**
+     * Emit an <tt>invokevirtual</tt> or <tt>invokespecial</tt>.
+     */
+    void invoke(int opcode, String owner, String name, String desc) {
+	op(opcode);
+	writeShort(memberRef(CONSTANT_Methodref, owner, name, desc));
+    }
+
+    /**
+     * Allocate a label, to be placed later with <tt>mark()</tt>.
+     *
+     * @return	the new label.
+     */
+    int newLabel() {
+	labels.put(nextLabel, -1);
+	return nextLabel++;
+    }
+
+    /**
+     * Place a label at the current position. The operand stack must be empty
+     * here.
+     */
+    void mark(int label) {
+	labels.put(label, code.size());
+	targets.add(code.size());
+    }
+
+    /**
+     * Emit a branch to a label. The operand stack must be empty once the
+     * branch has popped its operands.
+     */
+    void jump(int opcode, int label) {
+	fixups.put(code.size(), label);
+	op(opcode);
+	writeShort(0);
+    }
+
+    /**
+     * Return the class file.
+     *
+     * @param	name	the name of the method.
+     * @param	desc	the descriptor of the method.
+     * @param	frame	the types of the method's local variables at every
+     *			branch target, as descriptors, with <tt>null</tt>
+     *			for the second slot of a <tt>long</tt>.
+     * @param	maxStack	the most operand stack slots the method uses.
+     * @return	the class file.
+     */
+    byte[] assemble(String name, String desc, String[] frame, int maxStack) {
+	byte[] body = code.toByteArray();
+
+	// patch the branches
+	for (Map.Entry<Integer,Integer> fixup : fixups.entrySet()) {
+	    int at = fixup.getKey();
+	    int target = labels.get(fixup.getValue());
+	    Lib.assertTrue(target >= 0);
+
+	    int offset = target - at;
+	    Lib.assertTrue(offset >= Short.MIN_VALUE && offset <= Short.MAX_VALUE);
+	    body[at+1] = (byte) (offset >> 8);
+	    body[at+2] = (byte) offset;
+	}
+
+	int codeName = utf8("Code");
+	int stackMapName = utf8("StackMapTable");
+	int initName = utf8("<init>");
+	int initDesc = utf8("()V");
+	int objectInit = memberRef(CONSTANT_Methodref, "java/lang/Object",
+				   "<init>", "()V");
+	int methodName = utf8(name);
+	int methodDesc = utf8(desc);
+
+	// the classes in the frame, added before the pool is written
+	int[] frameClasses = new int[frame.length];
+	for (int i=0; i<frame.length; i++) {
+	    if (frame[i] == null || frame[i].equals("I") ||
+		frame[i].equals("J"))
+		continue;
+	    else if (frame[i].startsWith("["))
+		frameClasses[i] = classRef(frame[i]);
+	    else
+		frameClasses[i] = classRef(frame[i].substring(1,
+							      frame[i].length()-1));
+	}
+
+	try {
+	    ByteArrayOutputStream stackMap = new ByteArrayOutputStream();
+	    DataOutputStream map = new DataOutputStream(stackMap);
+
+	    map.writeShort(targets.size());
+
+	    int last = -1;
+	    for (int target : targets) {
+		int delta = (last < 0) ? target : target - last - 1;
+
+		if (last < 0) {
+		    map.writeByte(FULL_FRAME);
+		    map.writeShort(delta);
+
+		    int count = 0;
+		    for (int i=0; i<frame.length; i++) {
+			if (frame[i] != null)
+			    count++;
+		    }
+		    map.writeShort(count);
+
+		    for (int i=0; i<frame.length; i++) {
+			if (frame[i] == null)
+			    continue;
+
+			if (frame[i].equals("I")) {
+			    map.writeByte(ITEM_Integer);
+			}
+			else if (frame[i].equals("J")) {
+			    map.writeByte(ITEM_Long);
+			}
+			else {
+			    map.writeByte(ITEM_Object);
+			    map.writeShort(frameClasses[i]);
+			}
+		    }
+
+		    map.writeShort(0);
+		}
+		else if (delta < 64) {
+		    map.writeByte(delta);
+		}
+		else {
+		    map.writeByte(SAME_FRAME_EXTENDED);
+		    map.writeShort(delta);
+		}
+
+		last = target;
+	    }
+
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    DataOutputStream out = new DataOutputStream(bytes);
+
+	    out.writeInt(0xCAFEBABE);
+	    out.writeShort(0);
+	    out.writeShort(CLASS_VERSION);
+
+	    out.writeShort(poolCount);
+	    out.write(pool.toByteArray());
+
+	    out.writeShort(ACC_FINAL | ACC_SUPER);
+	    out.writeShort(thisClass);
+	    out.writeShort(superClass);
+	    out.writeShort(1);
+	    out.writeShort(interfaceClass);
+
+	    // no fields
+	    out.writeShort(0);
+
+	    out.writeShort(2);
+
+	    // the constructor only calls Object's
+	    out.writeShort(0);
+	    out.writeShort(initName);
+	    out.writeShort(initDesc);
+	    out.writeShort(1);
+	    out.writeShort(codeName);
+	    out.writeInt(12 + 5);
+	    out.writeShort(1);
+	    out.writeShort(1);
+	    out.writeInt(5);
+	    out.writeByte(ALOAD_0);
+	    out.writeByte(INVOKESPECIAL);
+	    out.writeShort(objectInit);
+	    out.writeByte(RETURN);
+	    out.writeShort(0);
+	    out.writeShort(0);
+
+	    byte[] mapBytes = stackMap.toByteArray();
+	    boolean hasMap = !targets.isEmpty();
+
+	    out.writeShort(ACC_PUBLIC);
+	    out.writeShort(methodName);
+	    out.writeShort(methodDesc);
+	    out.writeShort(1);
+	    out.writeShort(codeName);
+	    out.writeInt(12 + body.length +
+			 (hasMap ? 6 + mapBytes.length : 0));
+	    out.writeShort(maxStack);
+	    out.writeShort(frame.length);
+	    out.writeInt(body.length);
+	    out.write(body);
+	    out.writeShort(0);
+	    if (hasMap) {
+		out.writeShort(1);
+		out.writeShort(stackMapName);
+		out.writeInt(mapBytes.length);
+		out.write(mapBytes);
+	    }
+	    else {
+		out.writeShort(0);
+	    }
+
+	    // no class attributes
+	    out.writeShort(0);
+
+	    out.flush();
+	    return bytes.toByteArray();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	    return null;
+	}
+    }
+
+    private void writeShort(int value) {
+	code.write(value >> 8);
+	code.write(value);
+    }
+
+    private int utf8(String value) {
+	return constant("U" + value, CONSTANT_Utf8, value, 0, 0, 0);
+    }
+
+    private int classRef(String name) {
+	return constant("C" + name, CONSTANT_Class, null, utf8(name), 0, 0);
+    }
+
+    private int intConst(int value) {
+	return constant("I" + value, CONSTANT_Integer, null, 0, 0, value);
+    }
+
+    private int longConst(long value) {
+	return constant("J" + value, CONSTANT_Long, null, 0, 0, value);
+    }
+
+    private int memberRef(int tag, String owner, String name, String desc) {
+	int nameAndType = constant("N" + name + " " + desc,
+				   CONSTANT_NameAndType, null,
+				   utf8(name), utf8(desc), 0);
+
+	return constant(tag + owner + "." + name + " " + desc, tag, null,
+			classRef(owner), nameAndType, 0);
+    }
+
+    /**
+     * Return the index of a constant pool entry, adding it if it is new.
+     */
+    private int constant(String key, int tag, String utf8, int ref1, int ref2,
+			 long value) {
+	Integer index = constants.get(key);
+	if (index != null)
+	    return index;
+
+	index = poolCount;
+	constants.put(key, index);
+
+	try {
+	    DataOutputStream out = new DataOutputStream(pool);
+
+	    out.writeByte(tag);
+	    switch (tag) {
+	    case CONSTANT_Utf8:
+		out.writeUTF(utf8);
+		break;
+	    case CONSTANT_Class:
+		out.writeShort(ref1);
+		break;
+	    case CONSTANT_Integer:
+		out.writeInt((int) value);
+		break;
+	    case CONSTANT_Long:
+		out.writeLong(value);
+		break;
+	    default:
+		out.writeShort(ref1);
+		out.writeShort(ref2);
+		break;
+	    }
+	    out.flush();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+
+	// a long takes two entries
+	poolCount += (tag == CONSTANT_Long) ? 2 : 1;
+	Lib.assertTrue(poolCount < 0x10000);
+
+	return index;
+    }
+
+    private ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private int poolCount = 1;
+    private HashMap<String,Integer> constants = new HashMap<String,Integer>();
+
+    private HashMap<Integer,Integer> labels = new HashMap<Integer,Integer>();
+    private int nextLabel = 0;
+    private HashMap<Integer,Integer> fixups = new HashMap<Integer,Integer>();
+    private TreeSet<Integer> targets = new TreeSet<Integer>();
+
+    private int thisClass, superClass, interfaceClass;
+
+    /** Class files are version 55 (Java 11), the first with nestmates. */
+    private static final int CLASS_VERSION = 55;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int
+	CONSTANT_Utf8 = 1,
+	CONSTANT_Integer = 3,
+	CONSTANT_Long = 5,
+	CONSTANT_Class = 7,
+	CONSTANT_Fieldref = 9,
+	CONSTANT_Methodref = 10,
+	CONSTANT_NameAndType = 12;
+
+    private static final int
+	ITEM_Integer = 1,
+	ITEM_Long = 4,
+	ITEM_Object = 7;
+
+    private static final int
+	SAME_FRAME_EXTENDED = 251,
+	FULL_FRAME = 255;
+
+    // the opcodes used by the processor's translator
+    static final int
+	ICONST_0 = 0x03,
+	LCONST_0 = 0x09,
+	BIPUSH = 0x10,
+	SIPUSH = 0x11,
+	LDC_W = 0x13,
+	LDC2_W = 0x14,
+	ILOAD = 0x15,
+	LLOAD = 0x16,
+	ALOAD = 0x19,
+	ALOAD_0 = 0x2A,
+	IALOAD = 0x2E,
+	AALOAD = 0x32,
+	ISTORE = 0x36,
+	LSTORE = 0x37,
+	ASTORE = 0x3A,
+	IASTORE = 0x4F,
+	DUP = 0x59,
+	IADD = 0x60,
+	LADD = 0x61,
+	LSUB = 0x65,
+	LMUL = 0x69,
+	ISHL = 0x78,
+	LSHL = 0x79,
+	ISHR = 0x7A,
+	LSHR = 0x7B,
+	IUSHR = 0x7C,
+	LUSHR = 0x7D,
+	IAND = 0x7E,
+	LAND = 0x7F,
+	IOR = 0x80,
+	LOR = 0x81,
+	LXOR = 0x83,
+	I2L = 0x85,
+	L2I = 0x88,
+	LCMP = 0x94,
+	IFEQ = 0x99,
+	IFNE = 0x9A,
+	IFLT = 0x9B,
+	IFGE = 0x9C,
+	IFGT = 0x9D,
+	IFLE = 0x9E,
+	IF_ICMPEQ = 0x9F,
+	RETURN = 0xB1,
+	GETFIELD = 0xB4,
+	PUTFIELD = 0xB5,
+	INVOKEVIRTUAL = 0xB6,
+	INVOKESPECIAL = 0xB7;
+}
@@ -301,6 +301,7 @@ public final class ElevatorBank implements Runnable {
 	void run() {
 	    thread = new KThread(controller);
 	    thread.setName("elevator controller");
+	    thread.setDeadline(Config.getInteger("ElevatorBank.deadline", 0));
 	    thread.fork();
 	}
 
@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +52,6 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
     }
 
     /**
@@ -120,17 +118,112 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Advance the simulated time straight to the next pending interrupt, and
+     * invoke the handlers of all interrupts that are then due. Does nothing
+     * if no interrupt is pending.
+     *
+     * <p>
+     * This is meant to be called by an idle kernel, when there is nothing to
+     * run until some interrupt handler makes a thread ready. The skipped time
+     * is counted as kernel time, as if the kernel had spun until the
+     * interrupt. Interrupts must be disabled.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	PendingInterrupt next = first();
+	if (next == null)
+	    return;
+
+	Stats stats = privilege.stats;
+	long skipped = next.time - stats.totalTicks;
+
+	if (skipped > 0) {
+	    Lib.debug(dbgInt, "Idling for " + skipped + " ticks");
+
+	    stats.kernelTicks += skipped;
+	    stats.totalTicks += skipped;
+	}
+
+	checkIfDue();
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
-	
-	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+
+	PendingInterrupt toOccur = allocate(type, handler);
+	toOccur.time = privilege.stats.totalTicks + when;
+	toOccur.id = numPendingInterruptsCreated++;
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+		  " interrupt handler at time = " + toOccur.time);
+
+	insert(toOccur);
+    }
+
+    private void schedulePeriodic(long period, int jitter, String type,
+				  Runnable handler) {
+	Lib.assertTrue(jitter >= 0 && period - jitter/2 > 0);
+
+	PendingInterrupt toOccur = allocate(type, handler);
+	toOccur.period = period;
+	toOccur.jitter = jitter;
+
+	reschedule(toOccur);
+    }
+
+    /**
+     * Schedule the next occurrence of a periodic interrupt.
+     */
+    private void reschedule(PendingInterrupt toOccur) {
+	long delay = toOccur.period;
+	if (toOccur.jitter > 0)
+	    delay += Lib.random(toOccur.jitter) - (toOccur.jitter/2);
+
+	toOccur.time = privilege.stats.totalTicks + delay;
+	toOccur.id = numPendingInterruptsCreated++;
+
+	Lib.debug(dbgInt,
+		  "Scheduling the " + toOccur.type +
+		  " interrupt handler at time = " + toOccur.time);
+
+	insert(toOccur);
+    }
+
+    private long ticksUntilNextInterrupt() {
+	PendingInterrupt next = first();
+	if (next == null)
+	    return Long.MAX_VALUE;
 
-	pending.add(toOccur);
+	return next.time - privilege.stats.totalTicks;
+    }
+
+    private void tick(boolean inKernelMode, int count) {
+	Lib.assertTrue(count > 0);
+
+	// keep the per-tick trace when debugging
+	if (Lib.test(dbgInt)) {
+	    for (int i=0; i<count; i++)
+		tick(inKernelMode);
+	    return;
+	}
+
+	Stats stats = privilege.stats;
+
+	if (inKernelMode) {
+	    stats.kernelTicks += (long) count * Stats.KernelTick;
+	    stats.totalTicks += (long) count * Stats.KernelTick;
+	}
+	else {
+	    stats.userTicks += (long) count * Stats.UserTick;
+	    stats.totalTicks += (long) count * Stats.UserTick;
+	}
+
+	enabled = false;
+	checkIfDue();
+	enabled = true;
     }
 
     private void tick(boolean inKernelMode) {
@@ -161,18 +254,18 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
+	PendingInterrupt next = first();
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (next == null || next.time > time) {
+	    advance(time);
 	    return;
+	}
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
-	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+
+	while ((next = first()) != null && next.time <= time) {
+	    advance(next.time);
+	    remove(next);
 
 	    Lib.assertTrue(next.time <= time);
 
@@ -180,10 +273,22 @@ public final class Interrupt {
 		privilege.processor.flushPipe();
 
 	    Lib.debug(dbgInt, "  " + next.type);
-			
-	    next.handler.run();
+
+	    Runnable handler = next.handler;
+
+	    // periodic interrupts are rescheduled before their handler runs,
+	    // exactly as if the handler had rescheduled them itself
+	    if (next.period > 0)
+		reschedule(next);
+
+	    handler.run();
+
+	    if (next.period == 0)
+		free(next);
 	}
 
+	advance(time);
+
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
@@ -192,8 +297,19 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	ArrayList<PendingInterrupt> all = new ArrayList<PendingInterrupt>();
+	for (int level=0; level<wheelLevels; level++) {
+	    for (int slot=0; slot<wheelSize; slot++) {
+		for (PendingInterrupt p=wheel[level][slot]; p!=null; p=p.next)
+		    all.add(p);
+	    }
+	}
+	for (PendingInterrupt p=overflow; p!=null; p=p.next)
+	    all.add(p);
+
+	Collections.sort(all);
+
+	for (PendingInterrupt toOccur : all) {
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,17 +317,185 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * Get a pending interrupt node from the pool, or allocate a new one.
+     */
+    private PendingInterrupt allocate(String type, Runnable handler) {
+	PendingInterrupt toOccur = freeList;
+	if (toOccur != null)
+	    freeList = toOccur.next;
+	else
+	    toOccur = new PendingInterrupt();
+
+	toOccur.next = null;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.period = 0;
+	toOccur.jitter = 0;
+
+	return toOccur;
+    }
+
+    /**
+     * Return a one-shot interrupt node to the pool.
+     */
+    private void free(PendingInterrupt toOccur) {
+	toOccur.type = null;
+	toOccur.handler = null;
+	toOccur.next = freeList;
+	freeList = toOccur;
+    }
+
+    /**
+     * Add a pending interrupt to the timing wheel.
+     *
+     * <p>
+     * The wheel has <tt>wheelLevels</tt> levels of <tt>wheelSize</tt> slots
+     * each. An interrupt is kept at the lowest level where its time agrees
+     * with <tt>wheelTime</tt> in all higher bits, in the slot given by its
+     * time's bits for that level. So level 0 holds interrupts due in the
+     * current block of <tt>wheelSize</tt> ticks, one slot per tick, and each
+     * level above covers <tt>wheelSize</tt> times as many ticks. Interrupts
+     * too far in the future for any level are kept in an overflow list.
+     */
+    private void insert(PendingInterrupt toOccur) {
+	Lib.assertTrue(toOccur.time >= wheelTime);
+
+	long diff = toOccur.time ^ wheelTime;
+	int level = (diff == 0) ? 0 :
+	    (63 - Long.numberOfLeadingZeros(diff)) / wheelBits;
+
+	toOccur.prev = null;
+	toOccur.level = level;
+
+	if (level < wheelLevels) {
+	    toOccur.slot =
+		(int) (toOccur.time >>> (level*wheelBits)) & (wheelSize-1);
+	    toOccur.next = wheel[level][toOccur.slot];
+	    wheel[level][toOccur.slot] = toOccur;
+	    levelCount[level]++;
+	}
+	else {
+	    toOccur.next = overflow;
+	    overflow = toOccur;
+	}
+
+	if (toOccur.next != null)
+	    toOccur.next.prev = toOccur;
+
+	if (firstKnown && (first == null || toOccur.compareTo(first) < 0))
+	    first = toOccur;
+    }
+
+    private void remove(PendingInterrupt toOccur) {
+	if (toOccur.prev != null)
+	    toOccur.prev.next = toOccur.next;
+	else if (toOccur.level < wheelLevels)
+	    wheel[toOccur.level][toOccur.slot] = toOccur.next;
+	else
+	    overflow = toOccur.next;
+
+	if (toOccur.next != null)
+	    toOccur.next.prev = toOccur.prev;
+
+	if (toOccur.level < wheelLevels)
+	    levelCount[toOccur.level]--;
+
+	toOccur.prev = toOccur.next = null;
+
+	if (toOccur == first)
+	    firstKnown = false;
+    }
+
+    /**
+     * Return the pending interrupt that is due first, or <tt>null</tt> if
+     * none is pending.
+     */
+    private PendingInterrupt first() {
+	if (firstKnown)
+	    return first;
+
+	first = null;
+
+	for (int level=0; level<wheelLevels && first==null; level++) {
+	    if (levelCount[level] == 0)
+		continue;
+
+	    // slots before wheelTime's slot are empty at every level
+	    int slot = (int) (wheelTime >>> (level*wheelBits)) & (wheelSize-1);
+	    while (wheel[level][slot] == null)
+		slot++;
+
+	    first = earliest(wheel[level][slot]);
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+	if (first == null && overflow != null)
+	    first = earliest(overflow);
+
+	firstKnown = true;
+	return first;
+    }
+
+    private PendingInterrupt earliest(PendingInterrupt list) {
+	PendingInterrupt earliest = list;
+
+	for (PendingInterrupt p=list.next; p!=null; p=p.next) {
+	    if (p.compareTo(earliest) < 0)
+		earliest = p;
+	}
 
+	return earliest;
+    }
+
+    /**
+     * Advance the wheel to <i>time</i>, which must not be later than any
+     * pending interrupt. The slot that <i>time</i> falls in at each level
+     * is emptied into the levels below it, highest level first.
+     *
+     * <p>
+     * <i>time</i> may be behind the wheel if an interrupt handler switched
+     * threads and time moved on before it returned; then there is nothing to
+     * do.
+     */
+    private void advance(long time) {
+	if (time <= wheelTime)
+	    return;
+
+	long diff = wheelTime ^ time;
+	wheelTime = time;
+
+	if ((diff >>> (wheelLevels*wheelBits)) != 0) {
+	    PendingInterrupt list = overflow;
+	    overflow = null;
+	    cascade(list);
+	}
+
+	for (int level=wheelLevels-1; level>0; level--) {
+	    if ((diff >>> (level*wheelBits)) != 0) {
+		int slot = (int) (time >>> (level*wheelBits)) & (wheelSize-1);
+		PendingInterrupt list = wheel[level][slot];
+		if (list != null) {
+		    wheel[level][slot] = null;
+		    cascade(list);
+		}
+	    }
+	}
+    }
+
+    private void cascade(PendingInterrupt list) {
+	while (list != null) {
+	    PendingInterrupt next = list.next;
+
+	    if (list.level < wheelLevels)
+		levelCount[list.level]--;
+
+	    insert(list);
+	    list = next;
+	}
+    }
+
+    private class PendingInterrupt implements Comparable<PendingInterrupt> {
+	public int compareTo(PendingInterrupt toOccur) {
 	    // can't return 0 for unequal objects, so check all fields
 	    if (time < toOccur.time)
 		return -1;
@@ -229,15 +513,45 @@ public final class Interrupt {
 	String type;
 	Runnable handler;
 
+	/** The period of a periodic interrupt, or 0 for a one-shot. */
+	long period;
+	/** The random variation in a periodic interrupt's period. */
+	int jitter;
+
+	/** Wheel level (or <tt>wheelLevels</tt> for overflow) and slot. */
+	int level, slot;
+	/** Neighbours in the slot list, or in the pool. */
+	PendingInterrupt prev, next;
+
 	private long id;
     }
-    
+
     private long numPendingInterruptsCreated = 0;
 
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    private static final int wheelBits = 8;
+    private static final int wheelSize = 1 << wheelBits;
+    private static final int wheelLevels = 4;
+
+    /** The slot lists of the timing wheel, indexed by level and slot. */
+    private PendingInterrupt[][] wheel =
+	new PendingInterrupt[wheelLevels][wheelSize];
+    /** The number of pending interrupts at each level of the wheel. */
+    private int[] levelCount = new int[wheelLevels];
+    /** Pending interrupts beyond the range of the wheel. */
+    private PendingInterrupt overflow = null;
+    /** The time the wheel is positioned at. */
+    private long wheelTime = 0;
+
+    /** The pending interrupt due first, if <tt>firstKnown</tt>. */
+    private PendingInterrupt first = null;
+    private boolean firstKnown = true;
+
+    /** Interrupt nodes available for reuse. */
+    private PendingInterrupt freeList = null;
 
     private static final char dbgInt = 'i';
 
@@ -246,8 +560,21 @@ public final class Interrupt {
 	    Interrupt.this.schedule(when, type, handler);
 	}
 
+	public void schedulePeriodic(long period, int jitter, String type,
+				     Runnable handler) {
+	    Interrupt.this.schedulePeriodic(period, jitter, type, handler);
+	}
+
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tick(boolean inKernelMode, int count) {
+	    Interrupt.this.tick(inKernelMode, count);
+	}
+
+	public long ticksUntilNextInterrupt() {
+	    return Interrupt.this.ticksUntilNextInterrupt();
+	}
     }
 }
@@ -482,6 +482,17 @@ public final class Machine {
 	public void setConsole(SerialConsole console) {
 	    Machine.console = console;
 	}
+
+	public void countDeadline(boolean met) {
+	    if (met)
+		stats.numDeadlinesMet++;
+	    else
+		stats.numDeadlinesMissed++;
+	}
+
+	public void addStatsReport(Runnable report) {
+	    stats.addReport(report);
+	}
     }
 
     // dummy variables to make javac smarter
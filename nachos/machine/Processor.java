@@ -4,6 +4,13 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.security.PrivilegedAction;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -46,6 +53,38 @@ public final class Processor {
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	decodedPages = new DecodedInstruction[numPhysPages][];
+	blockPages = new Block[numPhysPages][];
+
+	String interpreter = Config.getString("Processor.interpreter",
+					      "classic");
+	Lib.assertTrue(interpreter.equals("classic") ||
+		       interpreter.equals("threaded"),
+		       "unknown Processor.interpreter: " + interpreter);
+	threaded = interpreter.equals("threaded");
+	hotBlockThreshold = Config.getInteger("Processor.hotBlockThreshold",
+					      16);
+	Lib.assertTrue(hotBlockThreshold >= 0);
+	translateThreshold = Config.getInteger("Processor.translateThreshold",
+					       256);
+
+	if (threaded && translateThreshold >= 0) {
+	    // the lookup must be made here, so classes defined through it are
+	    // nestmates of the processor
+	    final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() {
+			try {
+			    translator = new Translator(lookup);
+			}
+			catch (Throwable e) {
+			    Lib.debug(dbgTranslate, "hidden classes unavailable: "
+				      + e);
+			}
+		    }
+		});
+	}
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
@@ -55,6 +94,9 @@ public final class Processor {
 	else {
 	    translations = null;
 	}
+
+	// start with every micro-TLB entry invalid
+	Arrays.fill(microEpoch, -1);
     }
 
     /**
@@ -83,6 +125,13 @@ public final class Processor {
     
     /**
      * Start executing instructions at the current PC. Never returns.
+     *
+     * <p>
+     * If <tt>Processor.interpreter</tt> is <tt>threaded</tt>, instructions
+     * are executed a basic block at a time (see <tt>runThreaded()</tt>),
+     * unless processor or disassembly debugging is enabled, in which case
+     * the classic fetch/decode/execute loop is used so the debug output is
+     * unchanged.
      */
     public void run() {
 	Lib.debug(dbgProcessor, "starting program in current thread");
@@ -91,8 +140,21 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	// the kernel may have rewritten memory before starting this program
+	epoch++;
+
+	boolean debugging = Lib.test(dbgProcessor) ||
+	    Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble);
+
+	batchTicks = !debugging;
+	deferredTicks = 0;
+	resetTickLimit();
+
+	if (threaded && !debugging)
+	    runThreaded();
+
 	Instruction inst = new Instruction();
-	
+
 	while (true) {
 	    try {
 		inst.run();
@@ -101,10 +163,53 @@ public final class Processor {
 		e.handle();
 	    }
 
-	    privilege.interrupt.tick(false);
+	    tick();
 	}
     }
 
+    /**
+     * Advance the simulated time after a user instruction.
+     *
+     * <p>
+     * Rather than calling <tt>Interrupt.tick()</tt> for every instruction,
+     * the processor counts instructions until the next pending interrupt is
+     * due, and then accounts for all of them in one step. Interrupts still
+     * fire on exactly the same tick. Deferred ticks are always accounted for
+     * before kernel code runs, since the kernel may look at the time or
+     * schedule new interrupts.
+     */
+    private void tick() {
+	if (++deferredTicks >= tickLimit)
+	    flushTicks();
+    }
+
+    /**
+     * Account for any deferred ticks, invoking any interrupt handlers that
+     * are due, and then recompute how many ticks may be deferred.
+     */
+    private void flushTicks() {
+	int count = deferredTicks;
+	deferredTicks = 0;
+
+	if (count > 0)
+	    privilege.interrupt.tick(false, count);
+
+	resetTickLimit();
+    }
+
+    private void resetTickLimit() {
+	if (!batchTicks) {
+	    tickLimit = 1;
+	    return;
+	}
+
+	long ticks = privilege.interrupt.ticksUntilNextInterrupt();
+	long instructions = (ticks + Stats.UserTick - 1) / Stats.UserTick;
+
+	tickLimit = (int) Math.max(1, Math.min(instructions,
+					       Integer.MAX_VALUE));
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -175,6 +280,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	epoch++;
     }
 
     /**
@@ -216,6 +322,7 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+	epoch++;
     }
 
     /**
@@ -279,6 +386,51 @@ public final class Processor {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Translate a virtual address into a physical address, trying the
+     * micro-TLB for the specified kind of access before doing a full
+     * translation.
+     *
+     * <p>
+     * The micro-TLB is a small direct-mapped cache of recent translations,
+     * kept separately for instruction fetches, reads and writes. Its entries
+     * are tagged with the epoch they were made in, so all of them are dropped
+     * whenever the page table or TLB is replaced or rewritten, and whenever
+     * an exception or interrupt handler runs (which is the only time the
+     * kernel can modify a translation entry or clear its used or dirty bit).
+     * A hit therefore needs no further checks: the full translation already
+     * found the page valid (and writable, for writes), and already set its
+     * used bit (and dirty bit, for writes). Nothing is cached while
+     * processor debugging is enabled, so the debug output is unchanged.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	access	the kind of memory reference (<tt>accessFetch</tt>,
+     *			<tt>accessRead</tt> or <tt>accessWrite</tt>).
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translate(int vaddr, int size, int access)
+	throws MipsException {
+	int vpn = pageFromAddress(vaddr);
+	int offset = offsetFromAddress(vaddr);
+	int slot = access*microTLBSize + (vpn & (microTLBSize-1));
+
+	if (microEpoch[slot] == epoch && microVpn[slot] == vpn &&
+	    (vaddr & (size-1)) == 0)
+	    return microBase[slot] + offset;
+
+	int paddr = translate(vaddr, size, access == accessWrite);
+
+	if (!Lib.test(dbgProcessor)) {
+	    microEpoch[slot] = epoch;
+	    microVpn[slot] = vpn;
+	    microBase[slot] = paddr - offset;
+	}
+
+	return paddr;
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -378,7 +530,7 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
+	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, accessRead),
 				   size);
 
 	if (Lib.test(dbgProcessor))
@@ -405,9 +557,44 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+
+	int paddr = translate(vaddr, size, accessWrite);
+
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+	// drop any instructions decoded from this page
+	int ppn = paddr/pageSize;
+	if (decodedPages[ppn] != null || blockPages[ppn] != null) {
+	    decodedPages[ppn] = null;
+	    blockPages[ppn] = null;
+	    epoch++;
+	}
+    }
+
+    /**
+     * Return the decoded form of the instruction word <i>value</i>, which was
+     * fetched from physical address <i>paddr</i>. Decoded instructions are
+     * cached per physical page. A cached entry is only reused if it was
+     * decoded from the same word, so the kernel may modify main memory
+     * through <tt>getMemory()</tt> without notifying the processor.
+     *
+     * @param	paddr	the physical address the instruction was fetched from.
+     * @param	value	the instruction word.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction getDecoded(int paddr, int value) {
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) / 4;
+
+	DecodedInstruction[] page = decodedPages[ppn];
+	if (page == null)
+	    page = decodedPages[ppn] = new DecodedInstruction[pageSize / 4];
+
+	DecodedInstruction decoded = page[index];
+	if (decoded == null || decoded.value != value)
+	    decoded = page[index] = new DecodedInstruction(value);
+
+	return decoded;
     }
 
     /**
@@ -555,6 +742,59 @@ public final class Processor {
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /**
+     * Decoded instructions, indexed by physical page and then by word within
+     * the page. A page's entry is <tt>null</tt> until an instruction is
+     * fetched from it, and is dropped whenever <tt>writeMem()</tt> modifies
+     * the page.
+     */
+    private DecodedInstruction[][] decodedPages;
+    /**
+     * Basic blocks for the threaded interpreter, indexed like
+     * <tt>decodedPages</tt> by the physical address of their first
+     * instruction.
+     */
+    private Block[][] blockPages;
+    /** <tt>true</tt> if using the threaded interpreter. */
+    private boolean threaded;
+    /** The number of entries after which a block is chained to others. */
+    private int hotBlockThreshold;
+    /**
+     * A block is translated to JVM bytecode once it has been interpreted
+     * more than this many times. Negative if blocks are never translated.
+     */
+    private int translateThreshold;
+    /** Translates hot blocks, or <tt>null</tt> if they are not translated. */
+    private Translator translator = null;
+    /**
+     * Incremented whenever kernel code may have run or code may have been
+     * modified since the last instruction: when an exception or interrupt
+     * handler is invoked, when the address translation changes, and when a
+     * store hits a page that instructions were fetched from. A block is only
+     * run without revalidation while the epoch it was validated in is
+     * current.
+     */
+    private int epoch = 0;
+
+    /** <tt>true</tt> if ticks may be deferred. */
+    private boolean batchTicks;
+    /** The number of user ticks not yet passed to the interrupt controller. */
+    private int deferredTicks;
+    /** The number of deferred ticks at which they must be accounted for. */
+    private int tickLimit;
+
+    private static final int accessFetch = 0;
+    private static final int accessRead = 1;
+    private static final int accessWrite = 2;
+
+    /** The number of micro-TLB entries for each kind of access. */
+    private static final int microTLBSize = 8;
+    /** The epoch each micro-TLB entry was made in. */
+    private int[] microEpoch = new int[3*microTLBSize];
+    /** The virtual page number of each micro-TLB entry. */
+    private int[] microVpn = new int[3*microTLBSize];
+    /** The physical address of the page of each micro-TLB entry. */
+    private int[] microBase = new int[3*microTLBSize];
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -562,10 +802,14 @@ public final class Processor {
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
+    private static final char dbgTranslate = 't';
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+
+	    // an interrupt handler is about to run kernel code
+	    epoch++;
 	}
     }
 
@@ -593,14 +837,21 @@ public final class Processor {
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
+	    epoch++;
+
+	    // account for the instructions that completed before this one
+	    flushTicks();
 
 	    Lib.assertTrue(exceptionHandler != null);
 
 	    // autograder might not want kernel to know about this exception
 	    if (!Machine.autoGrader().exceptionHandler(privilege))
 		return;
-	    
+
 	    exceptionHandler.run();
+
+	    // the kernel may have scheduled new interrupts
+	    resetTickLimit();
 	}
 
 	private boolean hasBadVAddr = false;
@@ -626,78 +877,56 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
-	}
-	
-	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
+	    int vaddr = registers[regPC];
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(vaddr) + ", size=4");
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    int paddr = translate(vaddr, 4, accessFetch);
+	    value = Lib.bytesToInt(mainMemory, paddr, 4);
 
-	    mask = 0xFFFFFFFF;	
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
+
+	    decoded = getDecoded(paddr, value);
+	}
+
+	private void decode() {
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
+
+	    mask = 0xFFFFFFFF;
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,6 +1281,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
+	DecodedInstruction decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1293,1313 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * Run the threaded interpreter. Never returns.
+     *
+     * <p>
+     * Guest code is split into basic blocks, each ending with a branch or
+     * jump and its delay slot, a syscall, or the end of a page. A block is an
+     * array of handlers, each already bound to its instruction's operands,
+     * that are run back to back. Simulated time still advances after every
+     * instruction, exactly as in <tt>run()</tt>.
+     *
+     * <p>
+     * Only the first instruction of a block is fetched through
+     * <tt>translate()</tt>. The rest of the block lies in the same page, and
+     * its translation cannot change unless kernel code runs, which bumps the
+     * epoch and ends the block.
+     */
+    private void runThreaded() {
+	while (true) {
+	    try {
+		runBlock();
+	    }
+	    catch (MipsException e) {
+		e.handle();
+		tick();
+	    }
+	}
+    }
+
+    /**
+     * Run the block at the current PC and, while no kernel code runs, any
+     * blocks chained after it.
+     *
+     * <p>
+     * Every block counts how often it is entered. Once a block has been
+     * entered <tt>Processor.hotBlockThreshold</tt> times, its successors are
+     * remembered, so that a hot loop goes from block to block without going
+     * through <tt>translate()</tt> or the block cache. A link is only
+     * followed in the epoch it was made in, since until then neither the
+     * translation nor the code it points to can have changed.
+     *
+     * <p>
+     * A block that has been interpreted more than
+     * <tt>Processor.translateThreshold</tt> times is translated to JVM
+     * bytecode (see <tt>Translator</tt>). From then on its translation is
+     * run instead of its handlers, whenever the block can complete before
+     * the deferred ticks must be flushed.
+     */
+    private void runBlock() throws MipsException {
+	Block block = getBlock(translate(registers[regPC], 4, accessFetch));
+
+	while (true) {
+	    if (block.translation != null &&
+		tickLimit - deferredTicks > block.handlers.length) {
+		block.translation.run(this, block.handlers);
+	    }
+	    else {
+		Handler[] handlers = block.handlers;
+		int pc = registers[regPC];
+		int i = 0;
+
+		// run until the block is done, it branches away, or kernel
+		// code runs or code is modified
+		do {
+		    handlers[i].execute();
+		    tick();
+		    pc += 4;
+		} while (++i < handlers.length && registers[regPC] == pc &&
+			 block.epoch == epoch);
+
+		if (translator != null && block.runs++ == translateThreshold)
+		    block.translation = translator.translate(block);
+	    }
+
+	    if (block.epoch != epoch)
+		return;
+
+	    if (block.entries < hotBlockThreshold) {
+		block.entries++;
+		return;
+	    }
+
+	    int pc = registers[regPC];
+	    Block next = block.successor(pc, epoch);
+	    if (next == null) {
+		next = getBlock(translate(pc, 4, accessFetch));
+		block.link(pc, next, epoch);
+	    }
+
+	    block = next;
+	}
+    }
+
+    /**
+     * Return the basic block starting at physical address <i>paddr</i>,
+     * building it if necessary. A cached block is revalidated against main
+     * memory if the epoch has changed since it was last used.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the basic block starting at <i>paddr</i>.
+     */
+    private Block getBlock(int paddr) {
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) / 4;
+
+	Block[] page = blockPages[ppn];
+	if (page == null)
+	    page = blockPages[ppn] = new Block[pageSize / 4];
+
+	Block block = page[index];
+	if (block == null || (block.epoch != epoch && !block.matches()))
+	    block = page[index] = new Block(paddr);
+
+	block.epoch = epoch;
+	return block;
+    }
+
+    private class Block {
+	Block(int paddr) {
+	    this.paddr = paddr;
+
+	    int pageEnd = (paddr/pageSize + 1) * pageSize;
+	    int length = 0;
+	    boolean delaySlot = false;
+
+	    // find the end of the block
+	    for (int addr=paddr; addr<pageEnd; addr+=4) {
+		DecodedInstruction decoded =
+		    getDecoded(addr, Lib.bytesToInt(mainMemory, addr, 4));
+		length++;
+
+		if (delaySlot)
+		    break;
+		if (Lib.test(Mips.BRANCH, decoded.flags))
+		    delaySlot = true;
+		else if (decoded.operation == Mips.SYSCALL ||
+			 decoded.operation == Mips.UNIMPL ||
+			 decoded.operation == Mips.INVALID)
+		    break;
+	    }
+
+	    values = new int[length];
+	    handlers = new Handler[length];
+
+	    for (int i=0; i<length; i++) {
+		values[i] = Lib.bytesToInt(mainMemory, paddr + i*4, 4);
+		handlers[i] = newHandler(getDecoded(paddr + i*4, values[i]));
+	    }
+	}
+
+	/**
+	 * Test whether main memory still holds the instructions this block
+	 * was built from.
+	 */
+	boolean matches() {
+	    for (int i=0; i<values.length; i++) {
+		if (Lib.bytesToInt(mainMemory, paddr + i*4, 4) != values[i])
+		    return false;
+	    }
+
+	    return true;
+	}
+
+	/**
+	 * Return the block linked to virtual address <i>vaddr</i> in epoch
+	 * <i>epoch</i>, or <tt>null</tt> if there is none.
+	 */
+	Block successor(int vaddr, int epoch) {
+	    if (linkEpoch != epoch)
+		return null;
+	    else if (linkVaddr[0] == vaddr)
+		return linkBlock[0];
+	    else if (linkVaddr[1] == vaddr)
+		return linkBlock[1];
+	    else
+		return null;
+	}
+
+	/**
+	 * Link virtual address <i>vaddr</i> to block <i>next</i> for the
+	 * rest of epoch <i>epoch</i>. A block keeps two links, enough for
+	 * both sides of the branch that ends it.
+	 */
+	void link(int vaddr, Block next, int epoch) {
+	    if (linkEpoch != epoch) {
+		linkEpoch = epoch;
+		linkBlock[0] = linkBlock[1] = null;
+	    }
+
+	    int slot = (linkBlock[0] == null) ? 0 : 1;
+	    linkVaddr[slot] = vaddr;
+	    linkBlock[slot] = next;
+	}
+
+	int paddr;
+	int[] values;
+	Handler[] handlers;
+	int epoch;
+	int entries = 0;
+	int runs = 0;
+	Translation translation = null;
+
+	int linkEpoch;
+	int[] linkVaddr = new int[2];
+	Block[] linkBlock = new Block[2];
+    }
+
+    /**
+     * A basic block translated to JVM bytecode. Running it has exactly the
+     * same effect as running the block's handlers in <tt>runBlock()</tt>,
+     * provided no deferred ticks are flushed before it ends.
+     */
+    private interface Translation {
+	void run(Processor processor, Handler[] handlers) throws MipsException;
+    }
+
+    /**
+     * Translates hot basic blocks to JVM bytecode, one hidden class per
+     * block. Hidden classes are defined through a lookup on the processor, so
+     * they need no class loader of their own, may use the processor's private
+     * fields and methods directly, and are unloaded with their block.
+     *
+     * <p>
+     * A translation is only run when its whole block fits before the next
+     * tick flush, so it never checks the tick limit or calls kernel code
+     * between instructions. Between instructions that only compute, it also
+     * leaves the PC registers and the deferred tick count unwritten, and
+     * writes them before anything that could throw or observe them, and
+     * before returning.
+     *
+     * <p>
+     * Arithmetic, loads, stores and branches are translated inline, as the
+     * same <tt>long</tt> operations their handlers perform. Any other
+     * instruction calls its handler. The translation returns wherever
+     * <tt>runBlock()</tt> would stop interpreting the block: when the PC
+     * leaves the block, or when a store or handler changes the epoch.
+     */
+    private class Translator {
+	Translator(MethodHandles.Lookup lookup) throws Throwable {
+	    this.lookup = lookup;
+
+	    // defineHiddenClass() is new in Java 15, so find it reflectively
+	    Class optionClass = Class.forName(
+		"java.lang.invoke.MethodHandles$Lookup$ClassOption");
+	    options = Array.newInstance(optionClass, 1);
+	    Array.set(options, 0, Enum.valueOf(optionClass, "NESTMATE"));
+
+	    define = MethodHandles.publicLookup().findVirtual(
+		MethodHandles.Lookup.class, "defineHiddenClass",
+		MethodType.methodType(MethodHandles.Lookup.class,
+				      byte[].class, boolean.class,
+				      options.getClass())).asFixedArity();
+	}
+
+	/**
+	 * Translate the specified block.
+	 *
+	 * @param	block	the block to translate.
+	 * @return	the translation, or <tt>null</tt> if the block was not
+	 *		translated.
+	 */
+	Translation translate(Block block) {
+	    if (block.handlers.length > maxLength)
+		return null;
+
+	    final byte[] classFile = assemble(block);
+
+	    if (Lib.test(dbgTranslate))
+		System.out.println("translated block at 0x"
+				   + Lib.toHexString(block.paddr) + ", "
+				   + block.handlers.length + " instructions, "
+				   + classFile.length + " bytes");
+
+	    return (Translation) privilege.doPrivileged(new PrivilegedAction() {
+		    public Object run() {
+			try {
+			    MethodHandles.Lookup hidden = (MethodHandles.Lookup)
+				define.invoke(lookup, classFile, true, options);
+
+			    return hidden.findConstructor(hidden.lookupClass(),
+				MethodType.methodType(void.class)).invoke();
+			}
+			catch (Throwable e) {
+			    System.err.println("Warning: could not translate "
+					       + "block: " + e);
+			    translator = null;
+			    return null;
+			}
+		    }
+		});
+	}
+
+	private byte[] assemble(Block block) {
+	    a = new ClassAssembler("nachos/machine/TranslatedBlock",
+				   "nachos/machine/Processor$Translation");
+
+	    // registers = p.registers; entryEpoch = p.epoch;
+	    a.op(ClassAssembler.ALOAD, 1);
+	    a.field(ClassAssembler.GETFIELD, processor, "registers", "[I");
+	    a.op(ClassAssembler.ASTORE, 3);
+	    a.op(ClassAssembler.ALOAD, 1);
+	    a.field(ClassAssembler.GETFIELD, processor, "epoch", "I");
+	    a.op(ClassAssembler.ISTORE, 4);
+
+	    // every local is assigned before the first branch
+	    a.iconst(0);
+	    a.op(ClassAssembler.ISTORE, 5);
+	    a.lconst(0);
+	    a.op(ClassAssembler.LSTORE, 6);
+	    a.iconst(0);
+	    a.op(ClassAssembler.ISTORE, 8);
+	    loadRegister(regPC);
+	    a.op(ClassAssembler.ISTORE, 9);
+
+	    ticks = 0;
+	    pcIndex = 0;
+	    loadState = loadUnknown;
+
+	    int length = block.handlers.length;
+	    boolean delaySlot = false;
+
+	    for (int i=0; i<length; i++) {
+		DecodedInstruction inst =
+		    getDecoded(block.paddr + i*4, block.values[i]);
+
+		// the first instruction may be in a delay slot, and the last
+		// one is, so both must read and advance the real PC registers
+		boolean eager = (i == 0 || delaySlot);
+
+		switch (inst.operation) {
+		case Mips.ADD:
+		case Mips.SUB:
+		case Mips.SLL:
+		case Mips.SRA:
+		case Mips.SRL:
+		case Mips.SLT:
+		case Mips.AND:
+		case Mips.OR:
+		case Mips.NOR:
+		case Mips.XOR:
+		case Mips.LUI:
+		case Mips.MFLO:
+		case Mips.MFHI:
+		case Mips.MULT:
+		    if (Lib.test(Mips.OVERFLOW, inst.flags)) {
+			callHandler(i, inst);
+		    }
+		    else {
+			translateCompute(inst);
+			advance(i, eager);
+		    }
+		    break;
+		case Mips.LOAD:
+		    translateLoad(i, inst);
+		    advance(i, eager);
+		    break;
+		case Mips.STORE:
+		    translateStore(i, inst);
+		    advance(i, eager);
+		    checkEpoch(i);
+		    break;
+		case Mips.JUMP:
+		case Mips.BEQ:
+		case Mips.BNE:
+		case Mips.BLEZ:
+		case Mips.BGTZ:
+		case Mips.BLTZ:
+		case Mips.BGEZ:
+		    translateBranch(i, inst);
+		    break;
+		default:
+		    callHandler(i, inst);
+		    break;
+		}
+
+		delaySlot = Lib.test(Mips.BRANCH, inst.flags);
+
+		// stop if the block was entered in a delay slot
+		if (i == 0 && length > 1) {
+		    int next = a.newLabel();
+
+		    loadRegister(regPC);
+		    a.op(ClassAssembler.ILOAD, 9);
+		    a.iconst(4);
+		    a.op(ClassAssembler.IADD);
+		    a.jump(ClassAssembler.IF_ICMPEQ, next);
+		    exit(1);
+		    a.mark(next);
+		}
+	    }
+
+	    exit(length);
+
+	    byte[] classFile = a.assemble("run", "(L" + processor + ";[L"
+					  + handler + ";)V", frame, 16);
+	    a = null;
+	    return classFile;
+	}
+
+	/**
+	 * Leave the PC registers as if instruction <i>i</i> just completed.
+	 * The first instruction and branches always move the PC themselves;
+	 * other instructions are advanced lazily, by <tt>syncPC()</tt>.
+	 */
+	private void advance(int i, boolean eager) {
+	    if (!eager)
+		return;
+
+	    // registers[regPC] = registers[regNextPC];
+	    // registers[regNextPC] += 4;
+	    a.op(ClassAssembler.ALOAD, 3);
+	    a.iconst(regPC);
+	    loadRegister(regNextPC);
+	    a.op(ClassAssembler.IASTORE);
+	    a.op(ClassAssembler.ALOAD, 3);
+	    a.iconst(regNextPC);
+	    loadRegister(regNextPC);
+	    a.iconst(4);
+	    a.op(ClassAssembler.IADD);
+	    a.op(ClassAssembler.IASTORE);
+
+	    pcIndex = (pcIndex == pcDynamic) ? pcDynamic : i+1;
+	}
+
+	/**
+	 * Write the PC registers for instruction <i>i</i>, unless they are
+	 * already up to date.
+	 */
+	private void syncPC(int i) {
+	    emitPC(i);
+	    if (pcIndex != pcDynamic)
+		pcIndex = i;
+	}
+
+	private void emitPC(int i) {
+	    if (pcIndex == pcDynamic || pcIndex == i)
+		return;
+
+	    // registers[regPC] = entryPC + i*4;
+	    // registers[regNextPC] = entryPC + i*4 + 4;
+	    a.op(ClassAssembler.ALOAD, 3);
+	    a.iconst(regPC);
+	    a.op(ClassAssembler.ILOAD, 9);
+	    a.iconst(i*4);
+	    a.op(ClassAssembler.IADD);
+	    a.op(ClassAssembler.IASTORE);
+	    a.op(ClassAssembler.ALOAD, 3);
+	    a.iconst(regNextPC);
+	    a.op(ClassAssembler.ILOAD, 9);
+	    a.iconst(i*4 + 4);
+	    a.op(ClassAssembler.IADD);
+	    a.op(ClassAssembler.IASTORE);
+	}
+
+	/**
+	 * Add the ticks of the first <i>count</i> instructions to the
+	 * deferred tick count, unless they already have been.
+	 */
+	private void syncTicks(int count) {
+	    emitTicks(count);
+	    ticks = count;
+	}
+
+	private void emitTicks(int count) {
+	    if (count == ticks)
+		return;
+
+	    a.op(ClassAssembler.ALOAD, 1);
+	    a.op(ClassAssembler.DUP);
+	    a.field(ClassAssembler.GETFIELD, processor, "deferredTicks", "I");
+	    a.iconst(count - ticks);
+	    a.op(ClassAssembler.IADD);
+	    a.field(ClassAssembler.PUTFIELD, processor, "deferredTicks", "I");
+	}
+
+	/**
+	 * Make the processor's state current before instruction <i>i</i>
+	 * calls a method that may throw or look at it.
+	 */
+	private void sync(int i) {
+	    syncTicks(i);
+	    syncPC(i);
+	}
+
+	/**
+	 * Return after <i>count</i> instructions have completed, without
+	 * changing what the rest of the translation assumes.
+	 */
+	private void exit(int count) {
+	    emitTicks(count);
+	    emitPC(count);
+	    a.op(ClassAssembler.RETURN);
+	}
+
+	/** if (p.epoch != entryEpoch) return; */
+	private void checkEpoch(int i) {
+	    int same = a.newLabel();
+
+	    a.op(ClassAssembler.ALOAD, 1);
+	    a.field(ClassAssembler.GETFIELD, processor, "epoch", "I");
+	    a.op(ClassAssembler.ILOAD, 4);
+	    a.jump(ClassAssembler.IF_ICMPEQ, same);
+	    exit(i+1);
+	    a.mark(same);
+	}
+
+	/**
+	 * Complete any delayed load in progress. Whether one is in progress is
+	 * known, except after the first instruction or a load.
+	 */
+	private void finishLoad() {
+	    if (loadState == loadUnknown) {
+		int skip = a.newLabel();
+
+		a.op(ClassAssembler.ALOAD, 1);
+		a.field(ClassAssembler.GETFIELD, processor, "loadTarget", "I");
+		a.jump(ClassAssembler.IFEQ, skip);
+		a.op(ClassAssembler.ALOAD, 1);
+		a.invoke(ClassAssembler.INVOKEVIRTUAL, processor, "finishLoad",
+			 "()V");
+		a.mark(skip);
+	    }
+	    else if (loadState == loadPending) {
+		a.op(ClassAssembler.ALOAD, 1);
+		a.invoke(ClassAssembler.INVOKEVIRTUAL, processor, "finishLoad",
+			 "()V");
+	    }
+
+	    loadState = loadNone;
+	}
+
+	private void translateCompute(DecodedInstruction inst) {
+	    switch (inst.operation) {
+	    case Mips.LUI:
+		a.lconst(inst.imm << 16);
+		break;
+	    case Mips.MFLO:
+		loadRegister(regLo);
+		a.op(ClassAssembler.I2L);
+		break;
+	    case Mips.MFHI:
+		loadRegister(regHi);
+		a.op(ClassAssembler.I2L);
+		break;
+	    case Mips.SLL:
+	    case Mips.SRA:
+	    case Mips.SRL:
+		loadSrc2(inst);
+		loadSrc1(inst);
+		a.op(ClassAssembler.L2I);
+		a.iconst(0x1F);
+		a.op(ClassAssembler.IAND);
+		a.op(inst.operation == Mips.SLL ? ClassAssembler.LSHL :
+		     inst.operation == Mips.SRA ? ClassAssembler.LSHR :
+		     ClassAssembler.LUSHR);
+		break;
+	    case Mips.SLT:
+		// lcmp is -1 exactly when src1 < src2
+		loadSrc1(inst);
+		loadSrc2(inst);
+		a.op(ClassAssembler.LCMP);
+		a.iconst(31);
+		a.op(ClassAssembler.IUSHR);
+		a.op(ClassAssembler.I2L);
+		break;
+	    case Mips.NOR:
+		loadSrc1(inst);
+		loadSrc2(inst);
+		a.op(ClassAssembler.LOR);
+		a.lconst(-1);
+		a.op(ClassAssembler.LXOR);
+		break;
+	    default:
+		loadSrc1(inst);
+		loadSrc2(inst);
+		a.op(inst.operation == Mips.ADD ? ClassAssembler.LADD :
+		     inst.operation == Mips.SUB ? ClassAssembler.LSUB :
+		     inst.operation == Mips.MULT ? ClassAssembler.LMUL :
+		     inst.operation == Mips.AND ? ClassAssembler.LAND :
+		     inst.operation == Mips.OR ? ClassAssembler.LOR :
+		     ClassAssembler.LXOR);
+		break;
+	    }
+	    a.op(ClassAssembler.LSTORE, 6);
+
+	    finishLoad();
+
+	    if (inst.operation == Mips.MULT) {
+		// registers[regLo] = (int) dst; registers[regHi] = dst >> 32;
+		a.op(ClassAssembler.ALOAD, 3);
+		a.iconst(regLo);
+		a.op(ClassAssembler.LLOAD, 6);
+		a.op(ClassAssembler.L2I);
+		a.op(ClassAssembler.IASTORE);
+		a.op(ClassAssembler.ALOAD, 3);
+		a.iconst(regHi);
+		a.op(ClassAssembler.LLOAD, 6);
+		a.iconst(32);
+		a.op(ClassAssembler.LSHR);
+		a.op(ClassAssembler.L2I);
+		a.op(ClassAssembler.IASTORE);
+	    }
+	    else if (inst.dstReg != 0) {
+		a.op(ClassAssembler.ALOAD, 3);
+		a.iconst(inst.dstReg);
+		a.op(ClassAssembler.LLOAD, 6);
+		a.op(ClassAssembler.L2I);
+		a.op(ClassAssembler.IASTORE);
+	    }
+	}
+
+	private void translateLoad(int i, DecodedInstruction inst) {
+	    sync(i);
+
+	    // value = p.readMem(registers[rs] + imm, size)
+	    a.op(ClassAssembler.ALOAD, 1);
+	    loadRegister(inst.rs);
+	    a.iconst(inst.imm);
+	    a.op(ClassAssembler.IADD);
+	    a.iconst(inst.size);
+	    a.invoke(ClassAssembler.INVOKEVIRTUAL, processor, "readMem",
+		     "(II)I");
+
+	    if (!Lib.test(Mips.UNSIGNED, inst.flags) && inst.size < 4) {
+		a.iconst(32 - inst.size*8);
+		a.op(ClassAssembler.ISHL);
+		a.iconst(32 - inst.size*8);
+		a.op(ClassAssembler.ISHR);
+	    }
+	    a.op(ClassAssembler.ISTORE, 5);
+
+	    // p.delayedLoad(dstReg, value, 0xFFFFFFFF)
+	    a.op(ClassAssembler.ALOAD, 1);
+	    a.iconst(inst.dstReg);
+	    a.op(ClassAssembler.ILOAD, 5);
+	    a.iconst(0xFFFFFFFF);
+	    a.invoke(ClassAssembler.INVOKEVIRTUAL, processor, "delayedLoad",
+		     "(III)V");
+
+	    loadState = (inst.dstReg != 0) ? loadPending : loadNone;
+	}
+
+	private void translateStore(int i, DecodedInstruction inst) {
+	    sync(i);
+
+	    // p.writeMem(registers[rs] + imm, size, registers[rt])
+	    a.op(ClassAssembler.ALOAD, 1);
+	    loadRegister(inst.rs);
+	    a.iconst(inst.imm);
+	    a.op(ClassAssembler.IADD);
+	    a.iconst(inst.size);
+	    loadRegister(inst.rt);
+	    a.invoke(ClassAssembler.INVOKEVIRTUAL, processor, "writeMem",
+		     "(III)V");
+
+	    finishLoad();
+	}
+
+	private void translateBranch(int i, DecodedInstruction inst) {
+	    syncPC(i);
+
+	    // nextPC = registers[regNextPC] + 4
+	    loadRegister(regNextPC);
+	    a.iconst(4);
+	    a.op(ClassAssembler.IADD);
+	    a.op(ClassAssembler.ISTORE, 5);
+
+	    // jtarget
+	    if (inst.format == Mips.RFMT) {
+		loadRegister(inst.rs);
+	    }
+	    else if (inst.format == Mips.IFMT) {
+		loadRegister(regNextPC);
+		a.iconst(inst.branchOffset);
+		a.op(ClassAssembler.IADD);
+	    }
+	    else {
+		loadRegister(regNextPC);
+		a.iconst(0xF0000000);
+		a.op(ClassAssembler.IAND);
+		a.iconst(inst.target<<2);
+		a.op(ClassAssembler.IOR);
+	    }
+	    a.op(ClassAssembler.ISTORE, 8);
+
+	    // if the branch is not taken, continue at nextPC instead
+	    if (inst.operation != Mips.JUMP) {
+		int taken = a.newLabel();
+
+		loadSrc1(inst);
+		if (inst.operation == Mips.BEQ || inst.operation == Mips.BNE)
+		    loadSrc2(inst);
+		else
+		    a.lconst(0);
+		a.op(ClassAssembler.LCMP);
+
+		switch (inst.operation) {
+		case Mips.BEQ:
+		    a.jump(ClassAssembler.IFEQ, taken);
+		    break;
+		case Mips.BNE:
+		    a.jump(ClassAssembler.IFNE, taken);
+		    break;
+		case Mips.BLEZ:
+		    a.jump(ClassAssembler.IFLE, taken);
+		    break;
+		case Mips.BGTZ:
+		    a.jump(ClassAssembler.IFGT, taken);
+		    break;
+		case Mips.BLTZ:
+		    a.jump(ClassAssembler.IFLT, taken);
+		    break;
+		default:
+		    a.jump(ClassAssembler.IFGE, taken);
+		    break;
+		}
+
+		a.op(ClassAssembler.ILOAD, 5);
+		a.op(ClassAssembler.ISTORE, 8);
+		a.mark(taken);
+	    }
+
+	    finishLoad();
+
+	    if (Lib.test(Mips.LINK, inst.flags) && inst.dstReg != 0) {
+		a.op(ClassAssembler.ALOAD, 3);
+		a.iconst(inst.dstReg);
+		a.op(ClassAssembler.ILOAD, 5);
+		a.op(ClassAssembler.IASTORE);
+	    }
+
+	    // registers[regPC] = registers[regNextPC];
+	    // registers[regNextPC] = jtarget;
+	    a.op(ClassAssembler.ALOAD, 3);
+	    a.iconst(regPC);
+	    loadRegister(regNextPC);
+	    a.op(ClassAssembler.IASTORE);
+	    a.op(ClassAssembler.ALOAD, 3);
+	    a.iconst(regNextPC);
+	    a.op(ClassAssembler.ILOAD, 8);
+	    a.op(ClassAssembler.IASTORE);
+
+	    pcIndex = pcDynamic;
+	}
+
+	/** handlers[i].execute(), which moves the PC itself. */
+	private void callHandler(int i, DecodedInstruction inst) {
+	    sync(i);
+
+	    a.op(ClassAssembler.ALOAD, 2);
+	    a.iconst(i);
+	    a.op(ClassAssembler.AALOAD);
+	    a.invoke(ClassAssembler.INVOKEVIRTUAL, handler, "execute", "()V");
+
+	    if (pcIndex != pcDynamic)
+		pcIndex = i+1;
+
+	    // only loads leave a delayed load in progress
+	    if (inst.operation == Mips.LWL || inst.operation == Mips.LWR)
+		loadState = loadUnknown;
+	    else
+		loadState = loadNone;
+
+	    checkEpoch(i);
+	}
+
+	private void loadRegister(int reg) {
+	    a.op(ClassAssembler.ALOAD, 3);
+	    a.iconst(reg);
+	    a.op(ClassAssembler.IALOAD);
+	}
+
+	/** Push <tt>Handler.src1()</tt> as a <tt>long</tt>. */
+	private void loadSrc1(DecodedInstruction inst) {
+	    if (Lib.test(Mips.SRC1SH, inst.flags)) {
+		a.lconst(inst.sh);
+		return;
+	    }
+
+	    loadRegister(inst.rs);
+	    a.op(ClassAssembler.I2L);
+	    if (Lib.test(Mips.UNSIGNED, inst.flags)) {
+		a.lconst(0xFFFFFFFFL);
+		a.op(ClassAssembler.LAND);
+	    }
+	}
+
+	/** Push <tt>Handler.src2()</tt> as a <tt>long</tt>. */
+	private void loadSrc2(DecodedInstruction inst) {
+	    boolean unsigned = Lib.test(Mips.UNSIGNED, inst.flags);
+
+	    if (Lib.test(Mips.SRC2IMM, inst.flags)) {
+		a.lconst(unsigned ? inst.imm & 0xFFFFFFFFL : inst.imm);
+		return;
+	    }
+
+	    loadRegister(inst.rt);
+	    a.op(ClassAssembler.I2L);
+	    if (unsigned) {
+		a.lconst(0xFFFFFFFFL);
+		a.op(ClassAssembler.LAND);
+	    }
+	}
+
+	private MethodHandles.Lookup lookup;
+	private MethodHandle define;
+	private Object options;
+
+	// the state of the translation in progress
+	private ClassAssembler a;
+	/** The instructions whose ticks have been added. */
+	private int ticks;
+	/** The instruction the PC registers hold, or <tt>pcDynamic</tt>. */
+	private int pcIndex;
+	/** Whether a delayed load may be in progress. */
+	private int loadState;
+
+	/** The PC registers are current, but nextPC is not known. */
+	private static final int pcDynamic = -1;
+
+	private static final int
+	    loadNone = 0,
+	    loadPending = 1,
+	    loadUnknown = 2;
+
+	/**
+	 * The most instructions translated in one block, which keeps every
+	 * translation well under the size HotSpot will compile.
+	 */
+	private static final int maxLength = 100;
+
+	private static final String processor = "nachos/machine/Processor";
+	private static final String handler = "nachos/machine/Processor$Handler";
+
+	/**
+	 * The local variables of a translation: this, the processor, the
+	 * handlers, the registers, the entry epoch, nextPC or a loaded value,
+	 * the computed value, the branch target, and the entry PC.
+	 */
+	private final String[] frame = {
+	    "Ljava/lang/Object;", "L" + processor + ";", "[L" + handler + ";",
+	    "[I", "I", "I", "J", null, "I", "I"
+	};
+    }
+
+    /**
+     * Create a handler that executes the specified instruction. The handler
+     * has exactly the same effect as <tt>Instruction.run()</tt> after
+     * fetching it.
+     */
+    private Handler newHandler(DecodedInstruction inst) {
+	switch (inst.operation) {
+	case Mips.ADD:
+	    return new DstHandler(inst) {
+		    long compute(long src1, long src2) { return src1 + src2; }
+		};
+	case Mips.SUB:
+	    return new DstHandler(inst) {
+		    long compute(long src1, long src2) { return src1 - src2; }
+		};
+	case Mips.SLL:
+	    return new DstHandler(inst) {
+		    long compute(long src1, long src2) {
+			return src2 << (src1&0x1F);
+		    }
+		};
+	case Mips.SRA:
+	    return new DstHandler(inst) {
+		    long compute(long src1, long src2) {
+			return src2 >> (src1&0x1F);
+		    }
+		};
+	case Mips.SRL:
+	    return new DstHandler(inst) {
+		    long compute(long src1, long src2) {
+			return src2 >>> (src1&0x1F);
+		    }
+		};
+	case Mips.SLT:
+	    return new DstHandler(inst) {
+		    long compute(long src1, long src2) {
+			return (src1<src2) ? 1 : 0;
+		    }
+		};
+	case Mips.AND:
+	    return new DstHandler(inst) {
+		    long compute(long src1, long src2) { return src1 & src2; }
+		};
+	case Mips.OR:
+	    return new DstHandler(inst) {
+		    long compute(long src1, long src2) { return src1 | src2; }
+		};
+	case Mips.NOR:
+	    return new DstHandler(inst) {
+		    long compute(long src1, long src2) {
+			return ~(src1 | src2);
+		    }
+		};
+	case Mips.XOR:
+	    return new DstHandler(inst) {
+		    long compute(long src1, long src2) { return src1 ^ src2; }
+		};
+	case Mips.LUI:
+	    return new DstHandler(inst) {
+		    long compute(long src1, long src2) { return imm << 16; }
+		};
+	case Mips.MFLO:
+	    return new DstHandler(inst) {
+		    long compute(long src1, long src2) {
+			return registers[regLo];
+		    }
+		};
+	case Mips.MFHI:
+	    return new DstHandler(inst) {
+		    long compute(long src1, long src2) {
+			return registers[regHi];
+		    }
+		};
+
+	case Mips.MULT:
+	    return new Handler(inst) {
+		    void execute() {
+			long dst = src1() * src2();
+			registers[regLo] = (int) Lib.extract(dst, 0, 32);
+			registers[regHi] = (int) Lib.extract(dst, 32, 32);
+			finish(nextPC());
+		    }
+		};
+	case Mips.DIV:
+	    return new Handler(inst) {
+		    void execute() throws MipsException {
+			long src1 = src1(), src2 = src2();
+			try {
+			    registers[regLo] = (int) (src1 / src2);
+			    registers[regHi] = (int) (src1 % src2);
+			    if (registers[regLo]*src2 + registers[regHi] !=
+				src1)
+				throw new ArithmeticException();
+			}
+			catch (ArithmeticException e) {
+			    throw new MipsException(exceptionOverflow);
+			}
+			finish(nextPC());
+		    }
+		};
+	case Mips.MTLO:
+	    return new Handler(inst) {
+		    void execute() {
+			registers[regLo] = (int) src1();
+			finish(nextPC());
+		    }
+		};
+	case Mips.MTHI:
+	    return new Handler(inst) {
+		    void execute() {
+			registers[regHi] = (int) src1();
+			finish(nextPC());
+		    }
+		};
+
+	case Mips.BEQ:
+	    return new BranchHandler(inst) {
+		    boolean taken(long src1, long src2) {
+			return src1 == src2;
+		    }
+		};
+	case Mips.BNE:
+	    return new BranchHandler(inst) {
+		    boolean taken(long src1, long src2) {
+			return src1 != src2;
+		    }
+		};
+	case Mips.BGEZ:
+	    return new BranchHandler(inst) {
+		    boolean taken(long src1, long src2) { return src1 >= 0; }
+		};
+	case Mips.BGTZ:
+	    return new BranchHandler(inst) {
+		    boolean taken(long src1, long src2) { return src1 > 0; }
+		};
+	case Mips.BLEZ:
+	    return new BranchHandler(inst) {
+		    boolean taken(long src1, long src2) { return src1 <= 0; }
+		};
+	case Mips.BLTZ:
+	    return new BranchHandler(inst) {
+		    boolean taken(long src1, long src2) { return src1 < 0; }
+		};
+	case Mips.JUMP:
+	    return new BranchHandler(inst) {
+		    boolean taken(long src1, long src2) { return true; }
+		};
+
+	case Mips.LOAD:
+	    return new Handler(inst) {
+		    void execute() throws MipsException {
+			int value = readMem(registers[rs] + imm, size);
+
+			if (!unsigned)
+			    value = Lib.extend(value, 0, size*8);
+
+			delayedLoad(dstReg, value, 0xFFFFFFFF);
+			advancePC(nextPC());
+		    }
+		};
+	case Mips.LWL:
+	    return new Handler(inst) {
+		    void execute() throws MipsException {
+			int addr = registers[rs] + imm;
+			int value = readMem(addr&~0x3, 4);
+
+			// LWL shifts the input left so the addressed byte is
+			// highest
+			int preserved = (3-(addr&0x3))*8;
+
+			delayedLoad(dstReg, value << preserved,
+				    -1 << preserved);
+			advancePC(nextPC());
+		    }
+		};
+	case Mips.LWR:
+	    return new Handler(inst) {
+		    void execute() throws MipsException {
+			int addr = registers[rs] + imm;
+			int value = readMem(addr&~0x3, 4);
+
+			// LWR shifts the input right so the addressed byte
+			// is lowest
+			int preserved = (addr&0x3)*8;
+
+			delayedLoad(dstReg, value >>> preserved,
+				    -1 >>> preserved);
+			advancePC(nextPC());
+		    }
+		};
+	case Mips.STORE:
+	    return new Handler(inst) {
+		    void execute() throws MipsException {
+			writeMem(registers[rs] + imm, size, registers[rt]);
+			finish(nextPC());
+		    }
+		};
+	case Mips.SWL:
+	    return new Handler(inst) {
+		    void execute() throws MipsException {
+			int addr = registers[rs] + imm;
+			long src2 = src2();
+			int value = readMem(addr&~0x3, 4);
+
+			// SWL shifts highest order byte into the addressed
+			// position
+			int preserved = (3-(addr&0x3))*8;
+			int mask = -1 >>> preserved;
+			long dst = src2 >>> preserved;
+
+			// merge values
+			dst = (dst & mask) | (value & ~mask);
+
+			writeMem(addr&~0x3, 4, (int) dst);
+			finish(nextPC());
+		    }
+		};
+	case Mips.SWR:
+	    return new Handler(inst) {
+		    void execute() throws MipsException {
+			int addr = registers[rs] + imm;
+			long src2 = src2();
+			int value = readMem(addr&~0x3, 4);
+
+			// SWR shifts the lowest order byte into the
+			// addressed position
+			int preserved = (addr&0x3)*8;
+			int mask = -1 << preserved;
+			long dst = src2 << preserved;
+
+			// merge values
+			dst = (dst & mask) | (value & ~mask);
+
+			writeMem(addr&~0x3, 4, (int) dst);
+			finish(nextPC());
+		    }
+		};
+
+	case Mips.SYSCALL:
+	    return new Handler(inst) {
+		    void execute() throws MipsException {
+			throw new MipsException(exceptionSyscall);
+		    }
+		};
+	case Mips.UNIMPL:
+	    return new Handler(inst) {
+		    void execute() throws MipsException {
+			System.err.println("Warning: encountered " +
+					   "unimplemented inst");
+			throw new MipsException(exceptionIllegalInstruction);
+		    }
+		};
+	case Mips.INVALID:
+	    return new Handler(inst) {
+		    void execute() throws MipsException {
+			throw new MipsException(exceptionIllegalInstruction);
+		    }
+		};
+
+	default:
+	    Lib.assertNotReached();
+	    return null;
+	}
+    }
+
+    /**
+     * An instruction bound to its operands, used by the threaded interpreter.
+     * Source registers are always read before a pending delayed load is
+     * completed, and the PC is only advanced once the instruction can no
+     * longer raise an exception, as in <tt>Instruction.run()</tt>.
+     */
+    private abstract class Handler {
+	Handler(DecodedInstruction inst) {
+	    rs = inst.rs;
+	    rt = inst.rt;
+	    sh = inst.sh;
+	    imm = inst.imm;
+	    size = inst.size;
+	    dstReg = inst.dstReg;
+
+	    src1Shift = Lib.test(Mips.SRC1SH, inst.flags);
+	    src2Imm = Lib.test(Mips.SRC2IMM, inst.flags);
+	    unsigned = Lib.test(Mips.UNSIGNED, inst.flags);
+	}
+
+	abstract void execute() throws MipsException;
+
+	long src1() {
+	    long src1 = src1Shift ? sh : registers[rs];
+	    return unsigned ? src1 & 0xFFFFFFFFL : src1;
+	}
+
+	long src2() {
+	    long src2 = src2Imm ? imm : registers[rt];
+	    return unsigned ? src2 & 0xFFFFFFFFL : src2;
+	}
+
+	int nextPC() {
+	    return registers[regNextPC]+4;
+	}
+
+	/**
+	 * Complete any delayed load in progress and advance the PC.
+	 */
+	void finish(int nextPC) {
+	    if (loadTarget != 0)
+		finishLoad();
+
+	    advancePC(nextPC);
+	}
+
+	final int rs, rt, sh, imm, size, dstReg;
+	final boolean src1Shift, src2Imm, unsigned;
+    }
+
+    /**
+     * A handler for an instruction that computes a value into its
+     * destination register.
+     */
+    private abstract class DstHandler extends Handler {
+	DstHandler(DecodedInstruction inst) {
+	    super(inst);
+
+	    overflow = Lib.test(Mips.OVERFLOW, inst.flags);
+	}
+
+	abstract long compute(long src1, long src2);
+
+	void execute() throws MipsException {
+	    long dst = compute(src1(), src2());
+
+	    // if instruction is signed, but carry bit !+ sign bit, throw
+	    if (overflow && Lib.test(dst,31) != Lib.test(dst,32))
+		throw new MipsException(exceptionOverflow);
+
+	    int nextPC = nextPC();
+
+	    if (loadTarget != 0)
+		finishLoad();
+
+	    if (dstReg != 0)
+		registers[dstReg] = (int) dst;
+
+	    advancePC(nextPC);
+	}
+
+	final boolean overflow;
+    }
+
+    /**
+     * A handler for a branch or jump, which may also link.
+     */
+    private abstract class BranchHandler extends Handler {
+	BranchHandler(DecodedInstruction inst) {
+	    super(inst);
+
+	    format = inst.format;
+	    target = inst.target;
+	    branchOffset = inst.branchOffset;
+	    link = Lib.test(Mips.LINK, inst.flags);
+	}
+
+	abstract boolean taken(long src1, long src2);
+
+	void execute() {
+	    int nextPC = nextPC();
+	    int jtarget;
+
+	    if (format == Mips.RFMT)
+		jtarget = registers[rs];
+	    else if (format == Mips.IFMT)
+		jtarget = registers[regNextPC] + branchOffset;
+	    else
+		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
+
+	    boolean branch = taken(src1(), src2());
+
+	    if (loadTarget != 0)
+		finishLoad();
+
+	    if (link && dstReg != 0)
+		registers[dstReg] = nextPC;
+
+	    advancePC(branch ? jtarget : nextPC);
+	}
+
+	final int format, target, branchOffset;
+	final boolean link;
+    }
+
+    /**
+     * The parts of an instruction that depend only on the instruction word,
+     * unpacked once so that executing the same word again does not repeat the
+     * field extraction and table lookups.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch offsets always use the sign-extended immediate
+	    int imm = Lib.extend(value, 0, 16);
+	    branchOffset = imm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm &= 0xFFFF;
+
+	    this.imm = imm;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+
+	final int size, dstReg, branchOffset;
+    }
+
     private static class Mips {
 	Mips() {
 	}
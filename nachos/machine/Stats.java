@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -29,6 +31,22 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numDeadlinesMet + numDeadlinesMissed > 0)
+	    System.out.println("Deadlines: met " + numDeadlinesMet
+			       + ", missed " + numDeadlinesMissed);
+
+	for (Runnable report : reports)
+	    report.run();
+    }
+
+    /**
+     * Add a report for <tt>print()</tt> to print after the statistics in this
+     * object, such as the kernel's lock contention profile.
+     *
+     * @param	report	prints the report when run.
+     */
+    public void addReport(Runnable report) {
+	reports.add(report);
     }
 
     /**
@@ -61,6 +79,12 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The number of real-time jobs that finished by their deadline. */
+    public int numDeadlinesMet = 0;
+    /** The number of real-time jobs that finished after their deadline. */
+    public int numDeadlinesMissed = 0;
+
+    private ArrayList<Runnable> reports = new ArrayList<Runnable>();
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -6,6 +6,10 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -19,6 +23,19 @@ import java.security.PrivilegedAction;
  * Nachos or have no useful effect.
  *
  * <p>
+ * The kind of Java thread backing each TCB is selected by
+ * <tt>TCB.backend</tt>:
+ * <ul>
+ * <li><tt>platform</tt> (the default) uses ordinary Java threads.
+ * <li><tt>compact</tt> uses Java threads with a small stack of
+ * <tt>TCB.stackSize</tt> bytes, so many more of them fit in the host.
+ * <li><tt>virtual</tt> uses virtual threads, when the JVM provides them.
+ * </ul>
+ * The number of TCBs that may exist at once is limited by
+ * <tt>TCB.maxThreads</tt>. Up to <tt>TCB.poolSize</tt> Java threads left
+ * over from destroyed TCBs are kept for reuse by later TCBs.
+ *
+ * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code.
  * It's against the rules, <i>and</i> it can easily deadlock nachos.
  */
@@ -40,6 +57,34 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	Lib.assertTrue(threadLimit > 0);
+
+	poolSize = Config.getInteger("TCB.poolSize", 32);
+	Lib.assertTrue(poolSize >= 0);
+
+	backend = Config.getString("TCB.backend", "platform");
+	if (backend.equals("compact")) {
+	    stackSize = Config.getInteger("TCB.stackSize", 256*1024);
+	    Lib.assertTrue(stackSize > 0);
+	}
+	else if (backend.equals("virtual")) {
+	    try {
+		virtualBuilder = Thread.class.getMethod("ofVirtual")
+		    .invoke(null);
+		virtualUnstarted = Class.forName("java.lang.Thread$Builder")
+		    .getMethod("unstarted", Runnable.class);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("TCB.backend = virtual needs a JVM " +
+				     "with virtual threads");
+	    }
+	}
+	else {
+	    Lib.assertTrue(backend.equals("platform"),
+			   "unknown TCB.backend: " + backend);
+	}
     }
     
     /**
@@ -66,7 +111,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -86,26 +131,46 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we need a Java thread to run it.
+	     * If a carrier thread left over from a destroyed TCB is waiting
+	     * in the pool, we reuse it. Otherwise we have to make a new Java
+	     * thread. Creating Java threads is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
-
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
-
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	    final Carrier carrier;
+
+	    carrier = idleCarriers.pollFirst();
+	    if (carrier != null)
+		numIdleCarriers.decrementAndGet();
+
+	    if (carrier == null) {
+		tcbTarget = new Carrier(this);
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+			    javaThread = newJavaThread(tcbTarget);
+			}
+		    });
+
+		((Carrier) tcbTarget).thread = javaThread;
+	    }
+	    else {
+		javaThread = carrier.thread;
+	    }
+
+	    /* The Java thread hasn't yet started (or is parked in the pool),
+	     * but we need to get it blocking in yield(). We do this by
+	     * temporarily turning off the current TCB, starting (or binding)
+	     * the Java thread, and waiting for it to wake us up from
+	     * threadroot(). Once the new TCB wakes us up, it's safe to
+	     * context switch to the new TCB.
 	     */
-	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+	    owner = null;
+
+	    if (carrier == null)
+		this.javaThread.start();
+	    else
+		carrier.bind(this);
+
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -119,6 +184,30 @@ public final class TCB {
 	}
     }
 
+    /**
+     * Create an unstarted Java thread of the configured kind to run the
+     * specified target. Must be called with privilege.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (backend.equals("compact")) {
+	    return new Thread(null, target, "TCB-" + (numCreated++),
+			      stackSize);
+	}
+	else if (backend.equals("virtual")) {
+	    try {
+		return (Thread) virtualUnstarted.invoke(virtualBuilder,
+							target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("could not create virtual thread: " + e);
+		return null;
+	    }
+	}
+	else {
+	    return new Thread(target);
+	}
+    }
+
     /**
      * Return the TCB of the currently running thread.
      */
@@ -149,15 +238,14 @@ public final class TCB {
 	/* There are some synchronization concerns here. As soon as we wake up
 	 * the next thread, we cannot assume anything about static variables,
 	 * or about any TCB's state. Therefore, before waking up the next
-	 * thread, we must latch the value of currentTCB, and set its running
-	 * flag to false (so that, in case we get interrupted before we call
-	 * yield(), the interrupt will set the running flag and yield() won't
-	 * block).
+	 * thread, we must latch the value of currentTCB. Handing ownership to
+	 * the next thread also takes it away from this one (so that, in case
+	 * we get interrupted before we call yield(), the interrupt will make
+	 * us the owner again and yield() won't block).
 	 */
 
 	TCB previous = currentTCB;
-	previous.running = false;
-	
+
 	this.interrupt();
 	previous.yield();
     }
@@ -181,7 +269,6 @@ public final class TCB {
 	toBeDestroyed = null;
 
 	this.done = true;
-	currentTCB.running = false;
 
 	this.interrupt();
 	currentTCB.waitForInterrupt();
@@ -213,9 +300,9 @@ public final class TCB {
 
 	if (!isFirstTCB) {
 	    /* start() is waiting for us to wake it up, signalling that it's OK
-	     * to context switch to us. We leave the running flag false so that
-	     * we'll still run if a context switch happens before we go to
-	     * sleep. All we have to do is wake up the current TCB and then
+	     * to context switch to us. If a context switch to us happens
+	     * before we go to sleep, we'll already be the owner and won't
+	     * block. All we have to do is wake up the current TCB and then
 	     * wait to get woken up by contextSwitch() or destroy().
 	     */
 	    
@@ -228,7 +315,7 @@ public final class TCB {
 	     */
 	    
 	    currentTCB = this;
-	    running = true;
+	    owner = this;
 	}
 
 	try {
@@ -260,6 +347,53 @@ public final class TCB {
 	}
     }
 
+    /**
+     * A Java thread that runs TCBs, one after another. When the TCB it runs
+     * is destroyed, the carrier waits in <tt>idleCarriers</tt> to be bound
+     * to a newly started TCB, instead of terminating, so that forking many
+     * short-lived threads does not create and tear down a Java thread each
+     * time. At most <tt>TCB.poolSize</tt> carriers wait in the pool; any
+     * more terminate as before.
+     */
+    private static class Carrier implements Runnable {
+	Carrier(TCB tcb) {
+	    this.tcb = tcb;
+	}
+
+	public void run() {
+	    while (true) {
+		tcb.threadroot();
+		tcb = null;
+
+		// this TCB was destroyed; wait to be bound to another one. Two
+		// carriers can get here at once, so each reserves its place in
+		// the pool before joining it, and the pool never holds more than
+		// poolSize carriers.
+		if (numIdleCarriers.incrementAndGet() > poolSize) {
+		    numIdleCarriers.decrementAndGet();
+		    return;
+		}
+
+		idleCarriers.addFirst(this);
+
+		while (tcb == null)
+		    LockSupport.park(this);
+	    }
+	}
+
+	/**
+	 * Bind this idle carrier to a TCB being started, and wake it up.
+	 */
+	void bind(TCB tcb) {
+	    this.tcb = tcb;
+	    LockSupport.unpark(thread);
+	}
+
+	/** The TCB to run, or <tt>null</tt> while waiting in the pool. */
+	private volatile TCB tcb;
+	private Thread thread;
+    }
+
     /**
      * Invoked by threadroot() and by contextSwitch() when it is necessary to
      * wait for another TCB to context switch to this TCB. Since this TCB
@@ -280,29 +414,30 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
+     * Parks the Java thread bound to this TCB until this TCB is the
+     * <tt>owner</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private void waitForInterrupt() {
+	while (owner != this) {
+	    LockSupport.park(this);
+
+	    // Java interrupts are not used by TCBs, so ignore them
+	    Thread.interrupted();
 	}
     }
 
     /**
-     * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * Wake up this TCB by making it the <tt>owner</tt> and unparking the Java
+     * thread bound to it. Used in the ping-pong process of starting and
+     * destroying TCBs, as well as in context switching to this TCB.
      */
-    private synchronized void interrupt() {
-	running = true;
-	notify();
+    private void interrupt() {
+	owner = this;
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -326,11 +461,27 @@ public final class TCB {
 	toBeDestroyed = thread;
     }
 
+    /**
+     * The default maximum number of started, non-destroyed TCB's that can be
+     * in existence, if <tt>TCB.maxThreads</tt> is not set.
+     */
+    public static final int maxThreads = 250;
+
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
      * existence.
      */
-    public static final int maxThreads = 250;
+    private static int threadLimit = maxThreads;
+
+    /** The kind of Java thread backing each TCB. */
+    private static String backend = "platform";
+    /** The stack size of compact Java threads. */
+    private static long stackSize;
+    /** The number of compact Java threads created, used to name them. */
+    private static int numCreated = 0;
+    /** <tt>Thread.ofVirtual()</tt> and <tt>Thread.Builder.unstarted()</tt>. */
+    private static Object virtualBuilder;
+    private static Method virtualUnstarted;
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -354,13 +505,44 @@ public final class TCB {
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
      * the first TCB is created, this vector is basically never empty.
      */
     private static Vector<TCB> runningThreads = new Vector<TCB>();
+
+    /**
+     * Carrier threads whose TCB has been destroyed, waiting to run a newly
+     * started TCB. Carriers add themselves after their TCB's
+     * <tt>threadroot()</tt> returns, and <tt>start(Runnable)</tt> takes
+     * them. Both may happen at once, so this is a lock-free deque.
+     */
+    private static ConcurrentLinkedDeque<Carrier> idleCarriers =
+	new ConcurrentLinkedDeque<Carrier>();
+    /**
+     * The number of carriers in <tt>idleCarriers</tt>, plus those about to
+     * join it. A carrier counts itself before joining, so the pool never
+     * grows past <tt>poolSize</tt>.
+     */
+    private static AtomicInteger numIdleCarriers = new AtomicInteger();
+    /** The maximum number of carriers kept in <tt>idleCarriers</tt>. */
+    private static int poolSize = 0;
     
+    /**
+     * The TCB whose Java thread ought to be running, or <tt>null</tt> while
+     * <tt>start(Runnable)</tt> waits for a new Java thread to come up. This
+     * is an entirely different condition from membership in
+     * <tt>runningThreads</tt>, which contains all TCB objects that have
+     * started and have not terminated. Since there is only one owner, at
+     * most one Java thread is ever allowed to run Nachos code. When starting
+     * or destroying a TCB, the owner is temporarily a TCB other than the
+     * current TCB. Every change of owner is followed by an unpark of the new
+     * owner's Java thread, and the volatile write publishes everything the
+     * previous owner did to the next one.
+     */
+    private static volatile TCB owner = null;
+
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
 
@@ -379,17 +561,6 @@ public final class TCB {
      */
     private Thread javaThread = null;
 
-    /**
-     * <tt>true</tt> if and only if the Java thread bound to this TCB ought to
-     * be running. This is an entirely different condition from membership in
-     * <tt>runningThreads</tt>, which contains all TCB objects that have
-     * started and have not terminated. <tt>running</tt> is only <tt>true</tt>
-     * when the associated Java thread ought to run ASAP. When starting or
-     * destroying a TCB, this is temporarily true for a thread other than that
-     * of the current TCB.
-     */
-    private boolean running = false;
-
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
      * <tt>waitForInterrupt()</tt> returns in the doomed TCB, <tt>yield()</tt>
@@ -37,7 +37,10 @@ public final class Timer {
 		}
 	    };
 
-	scheduleInterrupt();
+	// the timer interrupt reschedules itself every period
+	privilege.interrupt.schedulePeriodic(Stats.TimerTicks,
+					     Stats.TimerTicks/10, "timer",
+					     timerInterrupt);
     }
 
     /**
@@ -50,6 +53,20 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Call <i>handler</i> as an interrupt once, exactly <i>delay</i> clock
+     * ticks from now. Unlike the periodic timer interrupt, this has no
+     * randomness, so it can be used to wake up sleeping threads on time.
+     *
+     * @param	delay		the number of clock ticks until the interrupt.
+     * @param	handler		the interrupt handler.
+     */
+    public void scheduleOneShot(long delay, Runnable handler) {
+	Lib.assertTrue(delay > 0);
+
+	privilege.interrupt.schedule(delay, "one-shot timer", handler);
+    }
+
     /**
      * Get the current time.
      *
@@ -60,7 +77,6 @@ public final class Timer {
     }
 
     private void timerInterrupt() {
-	scheduleInterrupt();
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -69,13 +85,6 @@ public final class Timer {
 	    handler.run();
     }
 
-    private void scheduleInterrupt() {
-	int delay = Stats.TimerTicks;
-	delay += Lib.random(delay/10) - (delay/20);
-
-	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
-    }
-
     private void scheduleAutoGraderInterrupt() {
 	privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
     }
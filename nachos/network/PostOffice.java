@@ -22,13 +22,13 @@ public class PostOffice {
      * "postal worker" thread.
      */
     public PostOffice() {
-	messageReceived = new Semaphore(0);
-	messageSent = new Semaphore(0);
-	sendLock = new Lock();
+	messageReceived = new Semaphore(0, "PostOffice.messageReceived");
+	messageSent = new Semaphore(0, "PostOffice.messageSent");
+	sendLock = new Lock("PostOffice.sendLock");
 
 	queues = new SynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new SynchList("PostOffice.queues");
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -43,6 +43,7 @@ public class PostOffice {
 		public void run() { postalDelivery(); }
 	    });
 
+	t.setDeadline(Config.getInteger("PostOffice.deadline", 0));
 	t.fork();
     }
 
@@ -132,6 +132,20 @@ public abstract class Privilege {
 	 * @param	console	the new hardware console.
 	 */
 	public void setConsole(SerialConsole console);
+
+	/**
+	 * Count a real-time job in the statistics.
+	 *
+	 * @param	met	<tt>true</tt> if the job finished by its deadline.
+	 */
+	public void countDeadline(boolean met);
+
+	/**
+	 * Add a report to print after the statistics when Nachos halts.
+	 *
+	 * @param	report	prints the report when run.
+	 */
+	public void addStatsReport(Runnable report);
     }
 
     /**
@@ -149,7 +163,24 @@ public abstract class Privilege {
 	 * @param	handler	the interrupt handler to call.
 	 */
 	public void schedule(long when, String type, Runnable handler);
-	
+
+	/**
+	 * Schedule an interrupt to occur periodically, starting one period
+	 * from now. Each period is <i>period</i> ticks, plus a random number
+	 * of ticks between <tt>-jitter/2</tt> and <tt>jitter/2</tt>. The next
+	 * occurrence is scheduled just before the handler is called.
+	 *
+	 * @param	period	the average number of ticks between
+	 *			interrupts.
+	 * @param	jitter	the range of the random variation in the
+	 *			period, or 0 for none.
+	 * @param	type	a name for the type of interrupt being
+	 *			scheduled.
+	 * @param	handler	the interrupt handler to call.
+	 */
+	public void schedulePeriodic(long period, int jitter, String type,
+				     Runnable handler);
+
 	/**
 	 * Advance the simulated time.
 	 *
@@ -158,6 +189,28 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by <i>count</i> ticks at once. This has
+	 * the same effect as calling <tt>tick(inKernelMode)</tt> <i>count</i>
+	 * times, provided no interrupt is due before the last of them.
+	 *
+	 * @param inKernelMode	<tt>true</tt> if the current thread is running kernel
+	 *		code, <tt>false</tt> if the current thread is running
+	 *		MIPS user code.
+	 * @param count	the number of ticks to advance (at least 1).
+	 */
+	public void tick(boolean inKernelMode, int count);
+
+	/**
+	 * Return the number of ticks from now until the next pending
+	 * interrupt is due, or <tt>Long.MAX_VALUE</tt> if no interrupt is
+	 * pending. Until kernel code runs, this many ticks can be batched
+	 * with <tt>tick(inKernelMode, count)</tt>.
+	 *
+	 * @return	the number of ticks until the next interrupt.
+	 */
+	public long ticksUntilNextInterrupt();
     }
 
     /**
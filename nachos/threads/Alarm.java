@@ -1,8 +1,5 @@
 package nachos.threads;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-
 import nachos.machine.*;
 
 /**
@@ -24,7 +21,13 @@ public class Alarm {
 		});
 
 		lock = new Lock();
-		waitQueue = new LinkedList<wakeAlarmThread>();
+
+		preempt = Config.getBoolean("Alarm.preempt", false);
+		exactWakeup = Config.getBoolean("Alarm.exactWakeup", false);
+
+		oneShotInterrupt = new Runnable() {
+			public void run() { oneShotInterrupt(); }
+		};
 
 	}
 
@@ -39,26 +42,12 @@ public class Alarm {
 		// disable interrupts;
 		boolean status = Machine.interrupt().disable();
 
-		//int i = 0;
-		wakeAlarmThread threadNext;
-
-
-		//Iterator<wakeAlarmThread> i = waitQueue.iterator();
-
-		for (Iterator<wakeAlarmThread> i = waitQueue.iterator(); i.hasNext();) 
-		{
-			threadNext = (wakeAlarmThread) i.next();
+		wakeUpDue();
 
-			// and if ready to wake up
-			if (Machine.timer().getTime() >= threadNext.wake) {
-				//waitQueue.remove(i);
-				//threadNext.waitThread.ready(); // now waiting thread is ready
-				i.remove();
-				threadNext.waitThread.ready();
-
-			}
-
-		}
+		// time slicing; the scheduler sees the yielding thread as having
+		// used up its quantum
+		if (preempt)
+			KThread.yield();
 
 		// restore interrupts
 		Machine.interrupt().restore(status);
@@ -90,6 +79,56 @@ public class Alarm {
 	// 	KThread.currentThread().yield();
 
 
+	/**
+	 * Ready every sleeping thread whose wake time has come, in order of wake
+	 * time. The sleepers are kept in a min-heap, so this costs O(1) when no
+	 * one is due.
+	 */
+	private void wakeUpDue() {
+		long time = Machine.timer().getTime();
+
+		while (size > 0 && waitQueue[0].wake <= time) {
+			wakeAlarmThread next = waitQueue[0];
+			remove(next);
+
+			if (next.handler != null)
+				next.handler.run();
+			else
+				next.waitThread.ready();
+		}
+	}
+
+	/**
+	 * The one-shot interrupt handler used with <tt>Alarm.exactWakeup</tt>.
+	 * Wakes the sleepers that are due and sets the timer for the next one.
+	 */
+	private void oneShotInterrupt() {
+		boolean status = Machine.interrupt().disable();
+
+		if (Machine.timer().getTime() >= oneShotTime)
+			oneShotTime = Long.MAX_VALUE;
+
+		wakeUpDue();
+
+		if (size > 0)
+			setOneShot(waitQueue[0].wake);
+
+		Machine.interrupt().restore(status);
+	}
+
+	/**
+	 * Make sure a one-shot interrupt happens at <i>wake</i>, unless one is
+	 * already set for that time or earlier.
+	 */
+	private void setOneShot(long wake) {
+		if (wake >= oneShotTime)
+			return;
+
+		oneShotTime = wake;
+		Machine.timer().scheduleOneShot(wake - Machine.timer().getTime(),
+				oneShotInterrupt);
+	}
+
 	/**
 	 * Put the current thread to sleep for at least <i>x</i> ticks,
 	 * waking it up in the timer interrupt handler. The thread must be
@@ -100,6 +139,11 @@ public class Alarm {
 	 * (current time) >= (WaitUntil called time)+(x)
 	 * </blockquote>
 	 *
+	 * <p>
+	 * If <tt>Alarm.exactWakeup</tt> is set, a one-shot timer interrupt is
+	 * also set for the earliest wake time, so the thread is woken up exactly
+	 * then instead of at the next periodic timer interrupt.
+	 *
 	 * @param	x	the minimum number of clock ticks to wait.
 	 *
 	 * @see	nachos.machine.Timer#getTime()
@@ -116,9 +160,13 @@ public class Alarm {
 		// lock.acquire();
 
 		wakeAlarmThread thread = new wakeAlarmThread(wakeTime, KThread.currentThread());
+		thread.order = sleepCount++;
 
 		// add the thread to the waitQueue;
-		waitQueue.add(thread);
+		add(thread);
+
+		if (exactWakeup && wakeTime > Machine.timer().getTime())
+			setOneShot(wakeTime);
 
 		// release lock and let thread sleep;
 		// lock.release();
@@ -130,9 +178,169 @@ public class Alarm {
 		// KThread.yield();
 	}
 
+	/**
+	 * Put the current thread to sleep until another thread wakes it up or
+	 * <i>x</i> ticks pass, whichever comes first. The current thread must
+	 * already be waiting on some queue, and interrupts must be disabled. If
+	 * the time runs out first, <i>waiter</i> takes the thread off its queue
+	 * from the timer interrupt handler.
+	 *
+	 * @param	x	the maximum number of clock ticks to wait.
+	 * @param	waiter	removes the current thread from the queue it is
+	 *			waiting on.
+	 * @return	<tt>true</tt> if the thread was woken up, or <tt>false</tt>
+	 *		if the time ran out.
+	 */
+	boolean sleepFor(long x, final Waiter waiter) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		final KThread thread = KThread.currentThread();
+
+		class Timeout implements Runnable {
+			public void run() {
+				if (waiter.remove(thread)) {
+					expired = true;
+					thread.ready();
+				}
+			}
+
+			boolean expired = false;
+		}
+
+		Timeout timeout = new Timeout();
+
+		long wakeTime = Machine.timer().getTime() + x;
+		wakeAlarmThread entry = new wakeAlarmThread(wakeTime, thread);
+		entry.order = sleepCount++;
+		entry.handler = timeout;
+
+		add(entry);
+
+		if (exactWakeup && x > 0)
+			setOneShot(wakeTime);
+
+		KThread.sleep();
+
+		if (entry.heapIndex >= 0)
+			remove(entry);
+
+		return !timeout.expired;
+	}
+
+	/**
+	 * Insert a sleeper into the heap.
+	 */
+	private void add(wakeAlarmThread entry) {
+		if (size == waitQueue.length) {
+			wakeAlarmThread[] newQueue =
+				new wakeAlarmThread[Math.max(8, waitQueue.length * 2)];
+			System.arraycopy(waitQueue, 0, newQueue, 0, size);
+			waitQueue = newQueue;
+		}
+
+		waitQueue[size] = entry;
+		entry.heapIndex = size;
+		size++;
+
+		siftUp(entry.heapIndex);
+	}
+
+	/**
+	 * Remove a sleeper from the heap, wherever it is.
+	 */
+	private void remove(wakeAlarmThread entry) {
+		int index = entry.heapIndex;
+
+		size--;
+		entry.heapIndex = -1;
+
+		if (index == size) {
+			waitQueue[size] = null;
+			return;
+		}
+
+		waitQueue[index] = waitQueue[size];
+		waitQueue[index].heapIndex = index;
+		waitQueue[size] = null;
+
+		siftUp(index);
+		siftDown(waitQueue[index].heapIndex);
+	}
+
+	private boolean before(wakeAlarmThread a, wakeAlarmThread b) {
+		if (a.wake != b.wake)
+			return a.wake < b.wake;
+		else
+			return a.order < b.order;
+	}
+
+	private void siftUp(int index) {
+		wakeAlarmThread entry = waitQueue[index];
+
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (!before(entry, waitQueue[parent]))
+				break;
+
+			waitQueue[index] = waitQueue[parent];
+			waitQueue[index].heapIndex = index;
+			index = parent;
+		}
+
+		waitQueue[index] = entry;
+		entry.heapIndex = index;
+	}
+
+	private void siftDown(int index) {
+		wakeAlarmThread entry = waitQueue[index];
+
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= size)
+				break;
+
+			if (child + 1 < size && before(waitQueue[child + 1], waitQueue[child]))
+				child++;
+
+			if (!before(waitQueue[child], entry))
+				break;
+
+			waitQueue[index] = waitQueue[child];
+			waitQueue[index].heapIndex = index;
+			index = child;
+		}
+
+		waitQueue[index] = entry;
+		entry.heapIndex = index;
+	}
+
+	/**
+	 * Takes a thread whose timed wait ran out off the queue it is waiting on.
+	 */
+	interface Waiter {
+		/**
+		 * Remove <i>thread</i> from the queue it waits on, if it still waits.
+		 *
+		 * @return	<tt>true</tt> if the thread was waiting.
+		 */
+		boolean remove(KThread thread);
+	}
+
 	private Lock lock;
+	private boolean preempt;
+	private boolean exactWakeup;
 	// private LinkedList<Long> sQueue;
-	private LinkedList<wakeAlarmThread> waitQueue;
+	/**
+	 * The sleepers, as a binary min-heap ordered by wake time. Each entry
+	 * remembers its index, so one woken up early can be taken out in
+	 * logarithmic time.
+	 */
+	private wakeAlarmThread[] waitQueue = new wakeAlarmThread[0];
+	private int size = 0;
+	private long sleepCount = 0;
+
+	private Runnable oneShotInterrupt;
+	private long oneShotTime = Long.MAX_VALUE;
 	// 	private wakeAlarmThread thread;
 
 
@@ -141,7 +349,10 @@ public class Alarm {
 // implement waiting for thread to wake up time
 class wakeAlarmThread {
 	long wake;
+	long order;
 	KThread waitThread;
+	Runnable handler;
+	int heapIndex = -1;
 
 	public wakeAlarmThread (long wTime, KThread wThread) {
 		this.wake = wTime;
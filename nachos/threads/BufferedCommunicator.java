@@ -0,0 +1,268 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>buffered communicator</i> passes 32-bit words from speakers to
+ * listeners through a bounded buffer, instead of pairing off one speaker and
+ * one listener per word like <tt>Communicator</tt>. A speaker only waits
+ * while the buffer is full, and a listener only while it is empty.
+ *
+ * <p>
+ * The bulk operations move as many words as fit per acquisition of the lock.
+ * Waiting threads are only woken when the buffer goes from empty to non-empty
+ * or from full to non-full; a woken thread wakes the next waiter itself if
+ * words or space are left over after it is done.
+ */
+public class BufferedCommunicator {
+    /**
+     * Allocate a new buffered communicator, holding up to
+     * <tt>BufferedCommunicator.capacity</tt> words.
+     */
+    public BufferedCommunicator() {
+	this(Config.getInteger("BufferedCommunicator.capacity", 64));
+    }
+
+    /**
+     * Allocate a new buffered communicator.
+     *
+     * @param	capacity	the number of words the buffer holds.
+     */
+    public BufferedCommunicator(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = new int[capacity];
+	lock = new Lock();
+	notEmpty = new Condition2(lock);
+	notFull = new Condition2(lock);
+    }
+
+    /**
+     * Put <i>word</i> in the buffer, waiting for space if it is full.
+     *
+     * @param	word	the integer to transfer.
+     */
+    public void speak(int word) {
+	lock.acquire();
+
+	waitForSpace();
+
+	buffer[(head + count) % buffer.length] = word;
+	count++;
+
+	if (count == 1 && waitingListeners > 0)
+	    notEmpty.wake();
+
+	// pass any space left over on to the next waiting speaker
+	if (count < buffer.length && waitingSpeakers > 0)
+	    notFull.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Take the oldest word from the buffer, waiting for one if it is empty.
+     *
+     * @return	the integer transferred.
+     */
+    public int listen() {
+	lock.acquire();
+
+	waitForWords();
+
+	boolean wasFull = (count == buffer.length);
+
+	int word = buffer[head];
+	head = (head + 1) % buffer.length;
+	count--;
+
+	if (wasFull && waitingSpeakers > 0)
+	    notFull.wake();
+
+	// pass any words left over on to the next waiting listener
+	if (count > 0 && waitingListeners > 0)
+	    notEmpty.wake();
+
+	lock.release();
+
+	return word;
+    }
+
+    /**
+     * Put all of <i>words</i> in the buffer, waiting for space as needed.
+     *
+     * @param	words	the integers to transfer.
+     */
+    public void speak(int[] words) {
+	speak(words, 0, words.length);
+    }
+
+    /**
+     * Put <i>length</i> words from <i>words</i>, starting at <i>offset</i>, in
+     * the buffer, waiting for space as needed. The words are kept in order,
+     * but if this thread has to wait, words of other speakers may be put in
+     * between.
+     *
+     * @param	words	the array to transfer words from.
+     * @param	offset	the index of the first word to transfer.
+     * @param	length	the number of words to transfer.
+     */
+    public void speak(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset + length <= words.length);
+
+	lock.acquire();
+
+	while (length > 0) {
+	    waitForSpace();
+
+	    boolean wasEmpty = (count == 0);
+
+	    int amount = Math.min(length, buffer.length - count);
+	    int tail = (head + count) % buffer.length;
+	    int first = Math.min(amount, buffer.length - tail);
+
+	    System.arraycopy(words, offset, buffer, tail, first);
+	    System.arraycopy(words, offset + first, buffer, 0, amount - first);
+
+	    count += amount;
+	    offset += amount;
+	    length -= amount;
+
+	    if (wasEmpty && waitingListeners > 0)
+		notEmpty.wake();
+	}
+
+	// pass any space left over on to the next waiting speaker
+	if (count < buffer.length && waitingSpeakers > 0)
+	    notFull.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Take up to <tt>out.length</tt> words from the buffer, waiting until
+     * there is at least one.
+     *
+     * @param	out	the array to transfer the words to.
+     * @return	the number of words transferred.
+     */
+    public int listen(int[] out) {
+	return listen(out, 0, out.length);
+    }
+
+    /**
+     * Take up to <i>length</i> words from the buffer and store them in
+     * <i>out</i>, starting at <i>offset</i>. Waits until there is at least one
+     * word, unless <i>length</i> is zero.
+     *
+     * @param	out	the array to transfer the words to.
+     * @param	offset	the index the first word is stored at.
+     * @param	length	the maximum number of words to transfer.
+     * @return	the number of words transferred.
+     */
+    public int listen(int[] out, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset + length <= out.length);
+
+	if (length == 0)
+	    return 0;
+
+	lock.acquire();
+
+	waitForWords();
+
+	boolean wasFull = (count == buffer.length);
+
+	int amount = Math.min(length, count);
+	int first = Math.min(amount, buffer.length - head);
+
+	System.arraycopy(buffer, head, out, offset, first);
+	System.arraycopy(buffer, 0, out, offset + first, amount - first);
+
+	head = (head + amount) % buffer.length;
+	count -= amount;
+
+	if (wasFull && waitingSpeakers > 0)
+	    notFull.wake();
+
+	// pass any words left over on to the next waiting listener
+	if (count > 0 && waitingListeners > 0)
+	    notEmpty.wake();
+
+	lock.release();
+
+	return amount;
+    }
+
+    /**
+     * Test that words sent in bulk arrive in order when the transfers wrap
+     * around the end of the buffer.
+     */
+    public static void selfTest() {
+	final BufferedCommunicator com = new BufferedCommunicator(5);
+	final int total = 100;
+
+	new KThread(new Runnable() {
+	    public void run() {
+		int[] words = new int[7];
+		for (int i=0; i<total; i+=words.length) {
+		    int length = Math.min(words.length, total - i);
+		    for (int j=0; j<length; j++)
+			words[j] = i + j;
+		    com.speak(words, 0, length);
+		}
+	    }
+	}).setName("bulk speaker").fork();
+
+	int[] out = new int[4];
+	int next = 0;
+	while (next < total) {
+	    // let the speaker refill the buffer behind the head
+	    KThread.yield();
+
+	    if (next % 9 == 0) {
+		Lib.assertTrue(com.listen() == next++);
+		continue;
+	    }
+
+	    int amount = com.listen(out, 1, 3);
+	    Lib.assertTrue(amount > 0 && amount <= 3);
+	    for (int j=0; j<amount; j++)
+		Lib.assertTrue(out[1+j] == next++);
+	}
+    }
+
+    /**
+     * Wait until the buffer is not full. The lock must be held.
+     */
+    private void waitForSpace() {
+	while (count == buffer.length) {
+	    waitingSpeakers++;
+	    notFull.sleep();
+	    waitingSpeakers--;
+	}
+    }
+
+    /**
+     * Wait until the buffer is not empty. The lock must be held.
+     */
+    private void waitForWords() {
+	while (count == 0) {
+	    waitingListeners++;
+	    notEmpty.sleep();
+	    waitingListeners--;
+	}
+    }
+
+    private int[] buffer;
+    private int head = 0;
+    private int count = 0;
+
+    private int waitingSpeakers = 0;
+    private int waitingListeners = 0;
+
+    private Lock lock;
+    private Condition2 notEmpty;
+    private Condition2 notFull;
+}
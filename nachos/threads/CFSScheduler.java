@@ -0,0 +1,342 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A completely fair scheduler.
+ * <p/>
+ * <p/>
+ * Every thread accumulates <i>virtual runtime</i>: the ticks it has spent
+ * running, scaled down by its weight. The CPU time is measured from
+ * <tt>runningThread()</tt> to <tt>stoppingThread()</tt>, which
+ * <tt>KThread</tt> calls whenever it switches threads. Queues keep their
+ * waiting threads in a red-black tree (a <tt>TreeSet</tt>) ordered by virtual
+ * runtime, and the next thread to be dequeued is always the one that has run
+ * least, so CPU time is shared in proportion to the weights without any
+ * linear scans.
+ * <p/>
+ * <p/>
+ * A thread's weight follows from its priority, with each step worth about
+ * 25% more CPU time, as with nice levels. A thread that starts waiting is
+ * placed no further than one timer interval behind the thread most recently
+ * dequeued, so threads that slept for a long time cannot monopolize the
+ * processor when they wake up.
+ * <p/>
+ * <p/>
+ * This scheduler does not transfer priority.
+ */
+public class CFSScheduler extends Scheduler {
+	/**
+	 * Allocate a new CFS scheduler.
+	 */
+	public CFSScheduler() {
+	}
+
+	/**
+	 * Allocate a new CFS thread queue.
+	 *
+	 * @param transferPriority
+	 *            ignored.
+	 * @return a new CFS thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new CFSQueue();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).priority;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum && priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	public void runningThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+
+		state.running = true;
+		state.startTime = Machine.timer().getTime();
+	}
+
+	public void stoppingThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+
+		state.charge();
+		state.running = false;
+	}
+
+	/**
+	 * The default priority for a new thread.
+	 */
+	public static final int priorityDefault = 20;
+	/**
+	 * The minimum priority that a thread can have.
+	 */
+	public static final int priorityMinimum = 0;
+	/**
+	 * The maximum priority that a thread can have.
+	 */
+	public static final int priorityMaximum = 39;
+
+	/**
+	 * The weight of a thread at <tt>priorityDefault</tt>. A tick of such a
+	 * thread advances its virtual runtime by this much.
+	 */
+	public static final int weightDefault = 1024;
+
+	/**
+	 * The weight of each priority, growing by a factor of 1.25 per step.
+	 */
+	private static final long[] weights = new long[priorityMaximum + 1];
+
+	static {
+		for (int i = priorityMinimum; i <= priorityMaximum; i++)
+			weights[i] = Math.max(1, Math.round(weightDefault
+					* Math.pow(1.25, i - priorityDefault)));
+	}
+
+	/**
+	 * How far behind the most recently dequeued thread a newly waiting thread
+	 * may be placed, in virtual runtime.
+	 */
+	private static final long wakeupCredit = (long) Stats.TimerTicks
+			* weightDefault;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A counter used to order threads of equal virtual runtime by the time
+	 * they started waiting.
+	 */
+	private long enqueueCount = 0;
+
+	/**
+	 * A <tt>ThreadQueue</tt> ordered by virtual runtime.
+	 */
+	protected class CFSQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingOn == null);
+
+			state.charge();
+
+			if (state.vruntime < minVruntime - wakeupCredit)
+				state.vruntime = minVruntime - wakeupCredit;
+
+			state.enqueueTime = enqueueCount++;
+			state.waitingOn = this;
+			waitQueue.add(state);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (waitQueue.isEmpty())
+				return null;
+
+			ThreadState state = waitQueue.pollFirst();
+			state.waitingOn = null;
+
+			if (state.vruntime > minVruntime)
+				minVruntime = state.vruntime;
+
+			return state.thread;
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn != this)
+				return false;
+
+			waitQueue.remove(state);
+			state.waitingOn = null;
+
+			return true;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Iterator<ThreadState> i = waitQueue.iterator(); i.hasNext();) {
+				ThreadState state = i.next();
+				System.out.print(state.thread + "(" + state.vruntime + ") ");
+			}
+		}
+
+		/**
+		 * The virtual runtime of the thread most recently dequeued, or of
+		 * any thread dequeued before it if that was larger.
+		 */
+		protected long minVruntime = 0;
+
+		private TreeSet<ThreadState> waitQueue = new TreeSet<ThreadState>(
+				new Comparator<ThreadState>() {
+					public int compare(ThreadState a, ThreadState b) {
+						if (a.vruntime != b.vruntime)
+							return a.vruntime < b.vruntime ? -1 : 1;
+						else if (a.enqueueTime != b.enqueueTime)
+							return a.enqueueTime < b.enqueueTime ? -1 : 1;
+						else
+							return 0;
+					}
+				});
+	}
+
+	/**
+	 * The scheduling state of a thread: its priority and virtual runtime.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread
+		 *            the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Set the priority, and so the weight, of the associated thread. If it
+		 * is running, the time so far is charged at the old weight.
+		 *
+		 * @param priority
+		 *            the new priority.
+		 */
+		public void setPriority(int priority) {
+			charge();
+
+			this.priority = priority;
+		}
+
+		/**
+		 * Add the ticks the associated thread has run since it was last
+		 * charged to its virtual runtime. If it is already waiting on a queue,
+		 * it is repositioned.
+		 */
+		public void charge() {
+			if (!running)
+				return;
+
+			long time = Machine.timer().getTime();
+			long ticks = time - startTime;
+			startTime = time;
+
+			if (ticks == 0)
+				return;
+
+			long delta = ticks * weightDefault * weightDefault / weights[priority];
+
+			if (waitingOn != null) {
+				waitingOn.waitQueue.remove(this);
+				vruntime += delta;
+				waitingOn.waitQueue.add(this);
+			}
+			else {
+				vruntime += delta;
+			}
+		}
+
+		/**
+		 * The thread with which this object is associated.
+		 */
+		protected KThread thread;
+		/**
+		 * The priority of the associated thread.
+		 */
+		protected int priority = priorityDefault;
+		/**
+		 * Ticks run, scaled by <tt>weightDefault</tt> squared over the weight.
+		 */
+		protected long vruntime = 0;
+		/**
+		 * <tt>true</tt> while the associated thread has the processor.
+		 */
+		protected boolean running = false;
+		/**
+		 * The time the thread was last charged.
+		 */
+		protected long startTime;
+		/**
+		 * The queue this thread is waiting on, or <tt>null</tt>.
+		 */
+		protected CFSQueue waitingOn = null;
+		/**
+		 * When this thread started waiting on <tt>waitingOn</tt>.
+		 */
+		protected long enqueueTime;
+	}
+}
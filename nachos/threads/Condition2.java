@@ -23,10 +23,25 @@ public class Condition2 {
 	 *                <tt>wake()</tt>, or <tt>wakeAll()</tt>.
 	 */
 	public Condition2(Lock conditionLock) {
+		this(conditionLock, null);
+	}
+
+	/**
+	 * Allocate a new condition variable, recording the time threads spend
+	 * sleeping on it under <i>name</i> if <tt>ThreadedKernel.profileLocks</tt>
+	 * is set. Sleeps are reported apart from lock contention; the time taken
+	 * to reacquire the lock is recorded by the lock itself.
+	 *
+	 * @param    conditionLock    the lock associated with this condition
+	 *                variable.
+	 * @param    name    the name to profile this condition variable under.
+	 */
+	public Condition2(Lock conditionLock, String name) {
 		this.conditionLock = conditionLock;
 
 		waitQueue = new LinkedList<KThread>();
 
+		profile = LockProfile.forInstance(Condition2.class, name);
 	}
 
 	/**
@@ -38,6 +53,8 @@ public class Condition2 {
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+		long sleepTime = (profile != null) ? Machine.timer().getTime() : 0;
+
 		conditionLock.release();
 
 		// disable interrupts.
@@ -52,8 +69,48 @@ public class Condition2 {
 		// enable interrupts.
 		Machine.interrupt().enable();
 
+		if (profile != null)
+			profile.slept(sleepTime);
+
+		conditionLock.acquire();
+	}
+
+	/**
+	 * Like <tt>sleep()</tt>, but give up waiting after <i>timeout</i> ticks.
+	 * The thread reacquires the associated lock before returning either way.
+	 *
+	 * @param	timeout	the maximum number of clock ticks to sleep.
+	 * @return	<tt>true</tt> if another thread woke this thread, or
+	 *		<tt>false</tt> if the time ran out first.
+	 */
+	public boolean sleepFor(long timeout) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		long sleepTime = (profile != null) ? Machine.timer().getTime() : 0;
+
+		conditionLock.release();
+
+		boolean intStatus = Machine.interrupt().disable();
+		boolean woken = false;
+
+		if (timeout > 0) {
+			waitQueue.add(KThread.currentThread());
+
+			woken = ThreadedKernel.alarm.sleepFor(timeout, new Alarm.Waiter() {
+				public boolean remove(KThread thread) {
+					return waitQueue.remove(thread);
+				}
+			});
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		if (profile != null)
+			profile.slept(sleepTime);
+
 		conditionLock.acquire();
 
+		return woken;
 	}
 
 	/**
@@ -83,19 +140,50 @@ public class Condition2 {
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+		// wake each thread in turn, so a thread in a timed wait is readied
+		// here rather than left for its timeout to find gone
 		while (!waitQueue.isEmpty())
-		{
-			// disable interrupt.
-			Machine.interrupt().disable();
-
-			// remove all elements from waitQueue.
-			waitQueue.clear();
+			wake();
+	}
 
-			// enable interrupt.
-			Machine.interrupt().enable();
+	/**
+	 * Test that a timed wait returns exactly once, whether its time runs out
+	 * or <tt>wakeAll()</tt> gets to it first. One waiter times out before
+	 * the <tt>wakeAll()</tt> and two are woken by it; all three must return.
+	 */
+	public static void selfTest() {
+		final Lock lock = new Lock();
+		final Condition2 condition = new Condition2(lock);
+		final Semaphore done = new Semaphore(0);
+		final long[] timeouts = { 1000, 20000, 20000 };
+		final boolean[] woken = new boolean[timeouts.length];
+
+		for (int i = 0; i < timeouts.length; i++) {
+			final int id = i;
+
+			new KThread(new Runnable() {
+				public void run() {
+					lock.acquire();
+					woken[id] = condition.sleepFor(timeouts[id]);
+					lock.release();
+					done.V();
+				}
+			}).setName("sleepFor " + i).fork();
 		}
+
+		ThreadedKernel.alarm.waitUntil(5000);
+
+		lock.acquire();
+		condition.wakeAll();
+		lock.release();
+
+		for (int i = 0; i < timeouts.length; i++)
+			Lib.assertTrue(done.P(30000), "timed waiter never returned");
+
+		Lib.assertTrue(!woken[0] && woken[1] && woken[2]);
 	}
 
 	private Lock conditionLock;
 	private LinkedList<KThread> waitQueue;
+	private LockProfile profile;
 }
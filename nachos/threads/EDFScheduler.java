@@ -0,0 +1,144 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * An earliest-deadline-first scheduler.
+ * <p/>
+ * <p/>
+ * Threads with a real-time reservation (see <tt>KThread.setDeadline()</tt>)
+ * are dequeued in order of their current deadline, always ahead of
+ * best-effort threads, which are served first-come first-served after them.
+ * A thread's deadline is read when it starts waiting and does not change
+ * while it waits.
+ * <p/>
+ * <p/>
+ * This scheduler does not transfer priority.
+ */
+public class EDFScheduler extends Scheduler {
+	/**
+	 * Allocate a new EDF scheduler.
+	 */
+	public EDFScheduler() {
+	}
+
+	/**
+	 * Allocate a new EDF thread queue.
+	 *
+	 * @param transferPriority
+	 *            ignored.
+	 * @return a new EDF thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new EDFQueue();
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A counter used to order threads of equal deadline by the time they
+	 * started waiting.
+	 */
+	private long enqueueCount = 0;
+
+	/**
+	 * A <tt>ThreadQueue</tt> ordered by deadline.
+	 */
+	protected class EDFQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+
+			state.deadline = thread.getDeadline();
+			state.enqueueTime = enqueueCount++;
+
+			waitQueue.add(state);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (waitQueue.isEmpty())
+				return null;
+
+			return waitQueue.pollFirst().thread;
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			return waitQueue.remove(getThreadState(thread));
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Iterator<ThreadState> i = waitQueue.iterator(); i.hasNext();) {
+				ThreadState state = i.next();
+				System.out.print(state.thread + "(" + state.deadline + ") ");
+			}
+		}
+
+		private TreeSet<ThreadState> waitQueue = new TreeSet<ThreadState>(
+				new Comparator<ThreadState>() {
+					public int compare(ThreadState a, ThreadState b) {
+						if (a.deadline != b.deadline)
+							return a.deadline < b.deadline ? -1 : 1;
+						else if (a.enqueueTime != b.enqueueTime)
+							return a.enqueueTime < b.enqueueTime ? -1 : 1;
+						else
+							return 0;
+					}
+				});
+	}
+
+	/**
+	 * The scheduling state of a thread: the deadline it is queued under.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread
+		 *            the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * The thread with which this object is associated.
+		 */
+		protected KThread thread;
+		/**
+		 * The deadline of the thread when it started waiting.
+		 */
+		protected long deadline;
+		/**
+		 * When this thread started waiting.
+		 */
+		protected long enqueueTime;
+	}
+}
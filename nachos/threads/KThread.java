@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.LinkedList;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -255,6 +257,9 @@ public class KThread {
 		if (currentThread.status != statusFinished)
 			currentThread.status = statusBlocked;
 
+		if (currentThread.deadline != noDeadline)
+			currentThread.completeJob();
+
 		runNextThread();
 	}
 
@@ -268,6 +273,9 @@ public class KThread {
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(status != statusReady);
 
+		if (status != statusRunning && relativeDeadline > 0)
+			deadline = Machine.timer().getTime() + relativeDeadline;
+
 		status = statusReady;
 		if (this != idleThread)
 			readyQueue.waitForAccess(this);
@@ -275,6 +283,88 @@ public class KThread {
 		Machine.autoGrader().readyThread(this);
 	}
 
+	/**
+	 * Replace the ready queue with one from <tt>ThreadedKernel.scheduler</tt>,
+	 * after the scheduler itself has been replaced. The ready threads, the
+	 * current thread and the idle thread lose their scheduling state and join
+	 * the new queue. The join queue is dropped, to be created again by the
+	 * new scheduler when next needed. Any other thread must have finished,
+	 * since its scheduling state belongs to the old scheduler.
+	 */
+	static void replaceReadyQueue() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		LinkedList<KThread> ready = new LinkedList<KThread>();
+		KThread thread;
+		while ((thread = readyQueue.nextThread()) != null)
+			ready.add(thread);
+
+		currentThread.schedulingState = null;
+		idleThread.schedulingState = null;
+
+		readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+		readyQueue.acquire(currentThread);
+		waitList = null;
+
+		while (!ready.isEmpty()) {
+			thread = ready.removeFirst();
+			thread.schedulingState = null;
+			readyQueue.waitForAccess(thread);
+		}
+	}
+
+	/**
+	 * Give this thread a real-time reservation. Every time it is forked or
+	 * woken up after blocking, it starts a job that should be done, by
+	 * blocking again, within <i>relativeDeadline</i> ticks. Jobs that finish
+	 * late are counted in <tt>Stats.numDeadlinesMissed</tt>. A periodic task
+	 * is a thread that sleeps in <tt>Alarm.waitUntil()</tt> until its next
+	 * period, with a relative deadline of at most the period.
+	 *
+	 * <p>
+	 * If this is the current thread, a job starts now. A relative deadline of
+	 * 0 makes the thread best-effort again.
+	 *
+	 * @param	relativeDeadline	the ticks each job may take, or 0.
+	 */
+	public void setDeadline(long relativeDeadline) {
+		Lib.assertTrue(relativeDeadline >= 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		this.relativeDeadline = relativeDeadline;
+
+		if (this == currentThread) {
+			if (relativeDeadline > 0)
+				deadline = Machine.timer().getTime() + relativeDeadline;
+			else
+				deadline = noDeadline;
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the absolute deadline of this thread's current job.
+	 *
+	 * @return	the time by which the current job should be done, or
+	 *		<tt>noDeadline</tt> for a best-effort thread.
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * The deadline of a thread that has no real-time reservation.
+	 */
+	public static final long noDeadline = Long.MAX_VALUE;
+
+	private void completeJob() {
+		Machine.autoGrader().jobFinished(Machine.timer().getTime() <= deadline);
+
+		deadline = noDeadline;
+	}
+
 	/**
 	 * Waits for this thread to finish. If this thread is already finished,
 	 * return immediately. This method must only be called once; the second
@@ -353,8 +443,11 @@ public class KThread {
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
+		idleFastForward = Config.getBoolean("KThread.idleFastForward",
+											false);
+
 		idleThread = new KThread(new Runnable() {
-			public void run() { while (true) yield(); }
+			public void run() { while (true) idle(); }
 		});
 		idleThread.setName("idle");
 
@@ -363,6 +456,35 @@ public class KThread {
 		idleThread.fork();
 	}
 
+	/**
+	 * Run one iteration of the idle thread. Normally this is just a
+	 * <tt>yield()</tt>. If <tt>KThread.idleFastForward</tt> is set and no
+	 * other thread is ready, the simulated time is advanced straight to the
+	 * next pending interrupt instead of one yield at a time.
+	 */
+	private static void idle() {
+		if (!idleFastForward) {
+			yield();
+			return;
+		}
+
+		Lib.assertTrue(currentThread == idleThread);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread nextThread = readyQueue.nextThread();
+		if (nextThread == null) {
+			// nothing can run until an interrupt handler readies a thread
+			Machine.interrupt().idle();
+		}
+		else {
+			currentThread.ready();
+			nextThread.run();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * Determine the next thread to run, then dispatch the CPU to the thread
 	 * using <tt>run()</tt>.
@@ -424,6 +546,7 @@ public class KThread {
 		Lib.assertTrue(tcb == TCB.currentTCB());
 
 		Machine.autoGrader().runningThread(this);
+		ThreadedKernel.scheduler.runningThread(this);
 
 		status = statusRunning;
 
@@ -435,12 +558,14 @@ public class KThread {
 	}
 
 	/**
-	 * Prepare this thread to give up the processor. Kernel threads do not
-	 * need to do anything here.
+	 * Prepare this thread to give up the processor. Kernel threads only
+	 * need to tell the scheduler.
 	 */
 	protected void saveState() {
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(this == currentThread);
+
+		ThreadedKernel.scheduler.stoppingThread(this);
 	}
 
 	private static class PingTest implements Runnable {
@@ -493,6 +618,8 @@ public class KThread {
 	private String name = "(unnamed thread)";
 	private Runnable target;
 	private TCB tcb;
+	private long relativeDeadline = 0;
+	private long deadline = noDeadline;
 
 	/**
 	 * Unique identifer for this thread. Used to deterministically compare
@@ -506,4 +633,5 @@ public class KThread {
 	private static KThread currentThread = null;
 	private static KThread toBeDestroyed = null;
 	private static KThread idleThread = null;
+	private static boolean idleFastForward = false;
 }
@@ -24,6 +24,17 @@ public class Lock {
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new lock, recording its contention under <i>name</i> if
+     * <tt>ThreadedKernel.profileLocks</tt> is set.
+     *
+     * @param	name	the name to profile this lock under.
+     */
+    public Lock(String name) {
+	profile = LockProfile.forInstance(Lock.class, name);
     }
 
     /**
@@ -35,8 +46,10 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
+	long requestTime = (profile != null) ? Machine.timer().getTime() : 0;
+	boolean contended = (lockHolder != null);
 
-	if (lockHolder != null) {
+	if (contended) {
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
 	}
@@ -47,9 +60,56 @@ public class Lock {
 
 	Lib.assertTrue(lockHolder == thread);
 
+	if (profile != null)
+	    acquireTime = profile.acquired(requestTime, contended);
+
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically acquire this lock, waiting at most <i>timeout</i> ticks for
+     * it to become free. The current thread must not already hold this lock.
+     *
+     * @param	timeout	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the lock was acquired, or <tt>false</tt> if
+     *		the time ran out first.
+     */
+    public boolean tryAcquire(long timeout) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+	long requestTime = (profile != null) ? Machine.timer().getTime() : 0;
+	boolean contended = (lockHolder != null);
+	boolean acquired;
+
+	if (!contended) {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	    acquired = true;
+	}
+	else if (timeout <= 0) {
+	    acquired = false;
+	}
+	else {
+	    waitQueue.waitForAccess(thread);
+	    acquired = ThreadedKernel.alarm.sleepFor(timeout,
+						     new Alarm.Waiter() {
+		    public boolean remove(KThread thread) {
+			return waitQueue.remove(thread);
+		    }
+		});
+	}
+
+	Lib.assertTrue(acquired == (lockHolder == thread));
+
+	if (profile != null && acquired)
+	    acquireTime = profile.acquired(requestTime, contended);
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
@@ -58,6 +118,9 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	if (profile != null)
+	    profile.released(acquireTime);
+
 	if ((lockHolder = waitQueue.nextThread()) != null)
 	    lockHolder.ready();
 	
@@ -76,4 +139,7 @@ public class Lock {
     private KThread lockHolder = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
+
+    private LockProfile profile;
+    private long acquireTime;
 }
@@ -0,0 +1,194 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Contention statistics for the synchronization primitives that share a
+ * name. <tt>Lock</tt>, <tt>Semaphore</tt>, <tt>Condition2</tt> and
+ * <tt>SynchList</tt> record into a profile when
+ * <tt>ThreadedKernel.profileLocks</tt> is set, and the profiles are printed
+ * with the other statistics when Nachos halts, most waited on first.
+ *
+ * <p>
+ * Time a thread spends waiting for a signal, on a condition variable or for
+ * an element of a <tt>SynchList</tt>, is not contention, and is recorded
+ * and printed apart from it as sleeps. Only <tt>Lock</tt> records how long
+ * it is held.
+ *
+ * <p>
+ * When profiling is disabled, <tt>forInstance()</tt> returns <tt>null</tt>
+ * and the primitives skip all of their bookkeeping.
+ */
+class LockProfile {
+    private LockProfile(String name) {
+	this.name = name;
+    }
+
+    /**
+     * Return the profile an instance of <i>cls</i> should record into, or
+     * <tt>null</tt> if profiling is disabled. Instances of the same class and
+     * name share a profile; an instance without a name is named after the
+     * place it was allocated.
+     *
+     * @param	cls	the class of the instance.
+     * @param	name	the name of the instance, or <tt>null</tt>.
+     * @return	the profile for the instance, or <tt>null</tt>.
+     */
+    static LockProfile forInstance(Class<?> cls, String name) {
+	if (!enabled)
+	    return null;
+
+	if (name == null)
+	    name = allocationSite();
+
+	String key = cls.getSimpleName() + " " + name;
+	LockProfile profile = profiles.get(key);
+
+	if (profile == null) {
+	    if (profiles.isEmpty()) {
+		Machine.autoGrader().addStatsReport(new Runnable() {
+			public void run() { print(); }
+		    });
+	    }
+
+	    profile = new LockProfile(key);
+	    profiles.put(key, profile);
+	}
+
+	return profile;
+    }
+
+    /**
+     * Return the first caller outside of the profiled classes, as
+     * <i>class</i>.<i>method</i>:<i>line</i>. A lock allocated by a
+     * <tt>SynchList</tt> is thus named after the code that allocated the list.
+     */
+    private static String allocationSite() {
+	for (StackTraceElement frame : new Throwable().getStackTrace()) {
+	    String className = frame.getClassName();
+
+	    if (className.equals(LockProfile.class.getName()) ||
+		className.equals(Lock.class.getName()) ||
+		className.equals(Semaphore.class.getName()) ||
+		className.equals(Condition2.class.getName()) ||
+		className.equals(SynchList.class.getName()))
+		continue;
+
+	    return className.substring(className.lastIndexOf('.') + 1) + "."
+		+ frame.getMethodName() + ":" + frame.getLineNumber();
+	}
+
+	return "(unknown)";
+    }
+
+    /**
+     * Record that a thread got access, after asking for it at
+     * <i>requestTime</i>.
+     *
+     * @param	requestTime	the time the thread asked for access.
+     * @param	contended	<tt>true</tt> if the thread had to wait.
+     * @return	the current time, to pass to <tt>released()</tt>.
+     */
+    long acquired(long requestTime, boolean contended) {
+	long time = Machine.timer().getTime();
+	long wait = time - requestTime;
+
+	acquisitions++;
+	if (contended)
+	    contendedAcquisitions++;
+
+	totalWait += wait;
+	if (wait > maxWait)
+	    maxWait = wait;
+
+	return time;
+    }
+
+    /**
+     * Record that a thread gave up access it got at <i>acquireTime</i>.
+     *
+     * @param	acquireTime	the time returned by <tt>acquired()</tt>.
+     */
+    void released(long acquireTime) {
+	holdTicks += Machine.timer().getTime() - acquireTime;
+	held = true;
+    }
+
+    /**
+     * Record that a thread waited for a signal, from <i>sleepTime</i> until
+     * now.
+     *
+     * @param	sleepTime	the time the thread started waiting.
+     */
+    void slept(long sleepTime) {
+	long sleep = Machine.timer().getTime() - sleepTime;
+
+	sleeps++;
+
+	totalSleep += sleep;
+	if (sleep > maxSleep)
+	    maxSleep = sleep;
+    }
+
+    private static void print() {
+	ArrayList<LockProfile> sorted =
+	    new ArrayList<LockProfile>(profiles.values());
+
+	Collections.sort(sorted, new Comparator<LockProfile>() {
+		public int compare(LockProfile a, LockProfile b) {
+		    if (a.totalWait != b.totalWait)
+			return a.totalWait > b.totalWait ? -1 : 1;
+		    else
+			return a.name.compareTo(b.name);
+		}
+	    });
+
+	for (LockProfile profile : sorted) {
+	    String line = profile.name + ":";
+
+	    if (profile.acquisitions > 0) {
+		line += " acquired " + profile.acquisitions
+		    + ", contended " + profile.contendedAcquisitions
+		    + ", wait " + profile.totalWait
+		    + " (max " + profile.maxWait + ")";
+
+		if (profile.held)
+		    line += ", held " + profile.holdTicks;
+	    }
+
+	    if (profile.sleeps > 0) {
+		if (profile.acquisitions > 0)
+		    line += ",";
+
+		line += " slept " + profile.sleeps
+		    + ", sleep " + profile.totalSleep
+		    + " (max " + profile.maxSleep + ")";
+	    }
+
+	    if (profile.acquisitions > 0 || profile.sleeps > 0)
+		System.out.println(line);
+	}
+    }
+
+    private String name;
+    private long acquisitions = 0;
+    private long contendedAcquisitions = 0;
+    private long totalWait = 0;
+    private long maxWait = 0;
+    private long holdTicks = 0;
+    private boolean held = false;
+    private long sleeps = 0;
+    private long totalSleep = 0;
+    private long maxSleep = 0;
+
+    private static final boolean enabled =
+	Config.getBoolean("ThreadedKernel.profileLocks", false);
+
+    private static HashMap<String, LockProfile> profiles =
+	new HashMap<String, LockProfile>();
+}
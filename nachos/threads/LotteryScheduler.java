@@ -3,10 +3,6 @@ package nachos.threads;
 import nachos.machine.*;
 
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.TreeSet;
-import java.util.LinkedList;
-
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -74,6 +70,7 @@ public class LotteryScheduler extends Scheduler {
 		int priority = getPriority(thread);
 
 		if (priority == priorityMaximum) {
+			Machine.interrupt().restore(status);
 			return false;
 		}
 
@@ -92,6 +89,7 @@ public class LotteryScheduler extends Scheduler {
 		int priority = getPriority(thread);
 
 		if (priority == priorityMinimum) {
+			Machine.interrupt().restore(status);
 			return false;
 		}
 
@@ -117,6 +115,8 @@ public class LotteryScheduler extends Scheduler {
 	}
 
 	//since we dealt with priority queues, we must now make lottery queues 
+	//waiting threads occupy slots of a Fenwick tree keyed by their tickets,
+	//so a draw and a ticket change both cost O(log n)
 	protected class LotteryQueue extends ThreadQueue {
 
 		LotteryQueue(boolean transferPriority) {
@@ -130,67 +130,177 @@ public class LotteryScheduler extends Scheduler {
 
 		public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).acquire(this);
+		}
 
-			if (!thread.getName().equals("main")) {
-				getThreadState(thread).acquire(this);
-			}
+		public void acquireShared(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).acquireShared(this);
+		}
 
+		public void releaseShared(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).releaseShared(this);
 		}
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			if (waitQueue.isEmpty()) {
+
+			ThreadState thread = pickNextThread();
+
+			if (thread == null) {
+				if (linkThread != null) {
+					linkThread.release(this);
+				}
 				return null;
 			}
 
-			int tickets = 0;
+			thread.leave();
+			thread.acquire(this);
+
+			return thread.thread;
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
 
-			for (int i = 0; i < waitQueue.size(); i++) {
-				ThreadState thread = waitQueue.get(i);
-				tickets = tickets + thread.getEffectivePriority();
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn != this) {
+				return false;
 			}
 
-			int win = Lib.random(tickets + 1);
+			state.leave();
+			return true;
+		}
 
-			int remainTickets = 0;
-			KThread winningThread = null;
-			ThreadState thread = null;
+		//holds the lottery; the winner stays in the queue
+		protected ThreadState pickNextThread() {
+			if (count == 0) {
+				return null;
+			}
 
-			for (int i = 0; i < waitQueue.size(); i++) {
-				thread = waitQueue.get(i);
-				remainTickets = remainTickets + thread.getEffectivePriority();
-				if (remainTickets >= win) {
-					winningThread = thread.thread;
-					break;
+			if (tickets == 0) {
+				//nobody holds a ticket, so take any waiting thread
+				for (int i = 0; i < slots.length; i++) {
+					if (slots[i] != null) {
+						return slots[i];
+					}
 				}
 			}
 
-			if(winningThread != null) {
-				waitQueue.remove(thread);
-			}
+			int win = Lib.random(tickets);
+			int pos = 0;
 
-			return winningThread;
+			for (int step = slots.length; step > 0; step >>= 1) {
+				if (pos + step <= slots.length && tree[pos + step] <= win) {
+					pos += step;
+					win -= tree[pos];
+				}
+			}
 
+			return slots[pos];
+		}
 
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
 
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] != null) {
+					System.out.print(slots[i].thread + "(" + weight[i] + ") ");
+				}
+			}
 		}
 
+		//puts a thread into a free slot and returns the slot
+		protected int add(ThreadState thread, int weight) {
+			if (free == 0) {
+				grow();
+			}
+
+			int slot = freeSlots[--free];
 
-		protected ThreadState pickNextThread() {
-			return null;
+			slots[slot] = thread;
+			count++;
+			update(slot, weight);
+
+			return slot;
 		}
 
+		//takes a thread out of its slot
+		protected void remove(int slot) {
+			update(slot, -weight[slot]);
+			slots[slot] = null;
+			count--;
+			freeSlots[free++] = slot;
+		}
 
-		public void print() {
-			Lib.assertTrue(Machine.interrupt().disabled());
+		//passes a change in the waiting tickets on to the linkThread and
+		//every sharer
+		protected void donate(int delta) {
+			if (!transferPriority) {
+				return;
+			}
+
+			if (linkThread != null) {
+				linkThread.adjust(delta);
+			}
+			for (ThreadState sharer : sharers) {
+				sharer.adjust(delta);
+			}
+		}
 
+		//changes the tickets held in a slot by delta
+		protected void update(int slot, int delta) {
+			weight[slot] += delta;
+			tickets += delta;
+
+			for (int i = slot + 1; i <= slots.length; i += i & -i) {
+				tree[i] += delta;
+			}
 		}
 
+		//doubles the number of slots and rebuilds the tree
+		private void grow() {
+			int capacity = Math.max(8, slots.length * 2);
+
+			ThreadState[] newSlots = new ThreadState[capacity];
+			int[] newWeight = new int[capacity];
+			System.arraycopy(slots, 0, newSlots, 0, slots.length);
+			System.arraycopy(weight, 0, newWeight, 0, weight.length);
+
+			freeSlots = new int[capacity];
+			free = 0;
+			for (int i = capacity - 1; i >= slots.length; i--) {
+				freeSlots[free++] = i;
+			}
+
+			tree = new int[capacity + 1];
+			for (int i = 1; i <= capacity; i++) {
+				tree[i] += newWeight[i - 1];
+				int parent = i + (i & -i);
+				if (parent <= capacity) {
+					tree[parent] += tree[i];
+				}
+			}
+
+			slots = newSlots;
+			weight = newWeight;
+		}
 
-		public LinkedList <ThreadState> waitQueue = new LinkedList<ThreadState>();
 		public boolean transferPriority;
 		public ThreadState linkThread = null;
-		private int index;
+		//threads sharing the resource, each given all the waiting tickets
+		protected HashSet<ThreadState> sharers = new HashSet<ThreadState>();
+
+		//total tickets of the waiting threads
+		protected int tickets = 0;
+		private int count = 0;
+
+		private ThreadState[] slots = new ThreadState[0];
+		private int[] weight = new int[0];
+		private int[] tree = new int[1];
+		private int[] freeSlots = new int[0];
+		private int free = 0;
 
 	}
 
@@ -198,52 +308,128 @@ public class LotteryScheduler extends Scheduler {
 
 		public ThreadState(KThread thread) {
 			this.thread = thread;
-			setPriority(priorityDefault);
-			waitQueue = new LotteryQueue(true);
+			this.priority = priorityDefault;
+			this.effectivePriority = priorityDefault;
 		}
 
 		public int getPriority() {
 			return priority;
 		}
 
+		//tickets of this thread plus everything donated to it
 		public int getEffectivePriority() {
-			effectivePriority = priority;
-
-			for (int i = 0; i < waitQueue.waitQueue.size(); i++) {
-				effectivePriority = effectivePriority + waitQueue.waitQueue.get(i).effectivePriority;
-			} 
-
 			return effectivePriority;
 		}
 
-
-
 		public void setPriority(int priority) {
 			if (this.priority == priority) {
 				return;
 			}
-			
+
+			int delta = priority - this.priority;
 			this.priority = priority;
+			adjust(delta);
 		}
 
-
 		public void waitForAccess(LotteryQueue waitQueue) {
-			waitQueue.waitQueue.add(this);
+			Lib.assertTrue(waitingOn == null);
 
-			if (waitQueue.linkThread != this && waitQueue.linkThread != null) {
-				waitQueue.linkThread.waitQueue.waitForAccess(this.thread);
+			if (waitQueue.linkThread == this) {
+				release(waitQueue);
 			}
 
+			waitingOn = waitQueue;
+			slot = waitQueue.add(this, effectivePriority);
 
+			waitQueue.donate(effectivePriority);
 		}
 
 		public void acquire(LotteryQueue waitQueue) {
+			if (waitQueue.linkThread == this) {
+				return;
+			}
+
+			if (waitQueue.linkThread != null) {
+				waitQueue.linkThread.release(waitQueue);
+			}
+
 			waitQueue.linkThread = this;
+
+			if (waitQueue.transferPriority) {
+				adjust(waitQueue.tickets);
+			}
+		}
+
+		//shares the resource with the other sharers; the linkThread gives
+		//it up
+		public void acquireShared(LotteryQueue waitQueue) {
+			if (waitQueue.linkThread != null) {
+				waitQueue.linkThread.release(waitQueue);
+			}
+
+			if (waitQueue.sharers.add(this) && waitQueue.transferPriority) {
+				adjust(waitQueue.tickets);
+			}
+		}
+
+		public void releaseShared(LotteryQueue waitQueue) {
+			Lib.assertTrue(waitQueue.sharers.remove(this));
+
+			if (waitQueue.transferPriority) {
+				adjust(-waitQueue.tickets);
+			}
+		}
+
+		public void release(LotteryQueue waitQueue) {
+			Lib.assertTrue(waitQueue.linkThread == this);
+
+			waitQueue.linkThread = null;
+
+			if (waitQueue.transferPriority) {
+				adjust(-waitQueue.tickets);
+			}
+		}
+
+		//stops waiting on waitingOn, taking the donation back from its owner
+		protected void leave() {
+			LotteryQueue waitQueue = waitingOn;
+
+			waitQueue.remove(slot);
+			waitingOn = null;
+
+			waitQueue.donate(-effectivePriority);
+		}
+
+		//changes the effective tickets by delta and passes the change along
+		//the linkThread chain, and to the sharers on the way
+		protected void adjust(int delta) {
+			ThreadState state = this;
+
+			while (delta != 0 && state != null) {
+				state.effectivePriority += delta;
+
+				LotteryQueue waitQueue = state.waitingOn;
+				if (waitQueue == null) {
+					break;
+				}
+
+				waitQueue.update(state.slot, delta);
+
+				if (!waitQueue.transferPriority) {
+					break;
+				}
+
+				for (ThreadState sharer : waitQueue.sharers) {
+					sharer.adjust(delta);
+				}
+				state = waitQueue.linkThread;
+			}
 		}
 
 		protected int priority;
 		protected int effectivePriority;
-		protected LotteryQueue waitQueue;
+		protected LotteryQueue waitingOn = null;
+		protected int slot;
 		protected KThread thread;
 
 	}
@@ -0,0 +1,322 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * A multilevel feedback queue scheduler.
+ * <p/>
+ * <p/>
+ * Every queue has several FIFO levels, and the next thread to be dequeued is
+ * the one that has waited longest at the highest non-empty level. A thread
+ * starts at the top level. CPU time is charged to it whenever it gives up the
+ * processor, and once it has used the quantum of its level, it drops one level
+ * down; each level's quantum is twice that of the level above. A thread that
+ * blocks and is later woken up moves one level up, so interactive threads
+ * (waiting in <tt>SynchConsole.readByte()</tt> or <tt>PostOffice.receive()</tt>,
+ * for instance) stay ahead of CPU-bound ones. Every
+ * <tt>MLFQScheduler.boostPeriod</tt> ticks all threads return to the top
+ * level, so nothing starves.
+ * <p/>
+ * <p/>
+ * CPU-bound threads only give up the processor on a timer interrupt if
+ * <tt>Alarm.preempt</tt> is set, so that should be enabled together with
+ * this scheduler.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new MLFQ scheduler.
+	 */
+	public MLFQScheduler() {
+		levels = Config.getInteger("MLFQScheduler.levels", 4);
+		quantum = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+		boostPeriod = Config.getInteger("MLFQScheduler.boostPeriod",
+				100 * Stats.TimerTicks);
+
+		Lib.assertTrue(levels > 0 && quantum > 0 && boostPeriod > 0);
+	}
+
+	/**
+	 * Allocate a new MLFQ thread queue.
+	 *
+	 * @param transferPriority
+	 *            ignored. Threads are ordered by their level only.
+	 * @return a new MLFQ thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQQueue();
+	}
+
+	/**
+	 * Return the level of the specified thread, where 0 is the lowest.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return levels - 1 - getThreadState(thread).level();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Start a new boost epoch if <tt>boostPeriod</tt> ticks have passed since
+	 * the last one. Threads notice the new epoch lazily.
+	 */
+	private void checkBoost() {
+		long time = Machine.timer().getTime();
+
+		if (time - lastBoost >= boostPeriod) {
+			boostEpoch++;
+			lastBoost = time;
+		}
+	}
+
+	/**
+	 * Return the number of ticks a thread may use at the specified level
+	 * before it is demoted.
+	 */
+	private long quantum(int level) {
+		return (long) quantum << level;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with one FIFO list per level.
+	 */
+	protected class MLFQQueue extends ThreadQueue {
+		MLFQQueue() {
+			waitQueue = new ArrayList<LinkedList<ThreadState>>(levels);
+			for (int i = 0; i < levels; i++)
+				waitQueue.add(new LinkedList<ThreadState>());
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			checkBoost();
+
+			ThreadState state = getThreadState(thread);
+			state.waitForAccess(thread == KThread.currentThread());
+
+			waitQueue.get(state.level()).add(state);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			checkBoost();
+
+			if (epoch != boostEpoch) {
+				for (int i = 1; i < levels; i++) {
+					waitQueue.get(0).addAll(waitQueue.get(i));
+					waitQueue.get(i).clear();
+				}
+				epoch = boostEpoch;
+			}
+
+			for (int i = 0; i < levels; i++) {
+				if (!waitQueue.get(i).isEmpty()) {
+					ThreadState state = waitQueue.get(i).removeFirst();
+					state.dispatched();
+					return state.thread;
+				}
+			}
+
+			return null;
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+
+			for (int i = 0; i < levels; i++) {
+				if (waitQueue.get(i).remove(state))
+					return true;
+			}
+
+			return false;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < levels; i++) {
+				System.out.print(i + ":");
+				for (ThreadState state : waitQueue.get(i))
+					System.out.print(" " + state.thread);
+				System.out.print(" ");
+			}
+		}
+
+		private ArrayList<LinkedList<ThreadState>> waitQueue;
+		private long epoch = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level and how much of that
+	 * level's quantum it has used.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread
+		 *            the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+			this.epoch = boostEpoch;
+		}
+
+		/**
+		 * Return the level of the associated thread, moving it back to the
+		 * top level if a boost happened since it was last looked at.
+		 */
+		public int level() {
+			if (epoch != boostEpoch) {
+				level = 0;
+				used = 0;
+				epoch = boostEpoch;
+			}
+
+			return level;
+		}
+
+		/**
+		 * Called when the associated thread is dequeued, and so may be about
+		 * to run. Acquiring a queue without waiting, as for an uncontended
+		 * lock, does not start a new slice.
+		 */
+		public void dispatched() {
+			dispatchTime = Machine.timer().getTime();
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on a queue. If it
+		 * is the running thread, charge it for the time since it was
+		 * dispatched and demote it once its quantum is used. Otherwise it is
+		 * being woken up after blocking, and moves up a level.
+		 *
+		 * @param running
+		 *            <tt>true</tt> if the associated thread is the current
+		 *            thread.
+		 */
+		public void waitForAccess(boolean running) {
+			int level = level();
+
+			if (running) {
+				used += Machine.timer().getTime() - dispatchTime;
+
+				if (used >= quantum(level)) {
+					this.level = Math.min(level + 1, levels - 1);
+					used = 0;
+				}
+			}
+			else if (level > 0) {
+				this.level = level - 1;
+				used = 0;
+			}
+		}
+
+		/**
+		 * The thread with which this object is associated.
+		 */
+		protected KThread thread;
+		/**
+		 * The level of the thread; 0 is the top level.
+		 */
+		protected int level = 0;
+		/**
+		 * Ticks used at the current level.
+		 */
+		protected long used = 0;
+		/**
+		 * The time the thread was last dequeued.
+		 */
+		protected long dispatchTime = 0;
+		/**
+		 * The boost epoch <tt>level</tt> belongs to.
+		 */
+		protected long epoch;
+	}
+
+	/**
+	 * Test that a CPU-bound thread that takes a lock in the middle of its
+	 * slice is still charged for the whole slice. The hog burns a quantum,
+	 * takes and releases an uncontended lock, and yields; it must have
+	 * dropped a level by then.
+	 */
+	public static void selfTest() {
+		final MLFQScheduler scheduler = (MLFQScheduler) ThreadedKernel.scheduler;
+		final Lock lock = new Lock();
+		final Semaphore done = new Semaphore(0);
+		final int[] lowest = new int[1];
+
+		KThread hog = new KThread(new Runnable() {
+			public void run() {
+				lowest[0] = scheduler.levels - 1;
+
+				for (int i = 0; i < 3; i++) {
+					boolean intStatus = Machine.interrupt().disable();
+					long start = Machine.timer().getTime();
+					long slice = scheduler.quantum(scheduler.getThreadState(
+							KThread.currentThread()).level());
+					Machine.interrupt().restore(intStatus);
+
+					while (Machine.timer().getTime() - start < slice) {
+						intStatus = Machine.interrupt().disable();
+						Machine.interrupt().restore(intStatus);
+					}
+
+					lock.acquire();
+					lock.release();
+
+					KThread.yield();
+
+					intStatus = Machine.interrupt().disable();
+					lowest[0] = Math.min(lowest[0],
+							scheduler.getPriority(KThread.currentThread()));
+					Machine.interrupt().restore(intStatus);
+				}
+
+				done.V();
+			}
+		});
+		hog.setName("MLFQ hog").fork();
+
+		done.P();
+
+		Lib.assertTrue(lowest[0] < scheduler.levels - 1,
+				"lock-taking CPU hog was never demoted");
+	}
+
+	private int levels;
+	private int quantum;
+	private long boostPeriod;
+
+	private long boostEpoch = 0;
+	private long lastBoost = 0;
+}
@@ -2,10 +2,10 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.TreeSet;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -129,17 +129,19 @@ public class PriorityScheduler extends Scheduler {
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 *
+	 * <p>
+	 * Waiting threads are kept in a <tt>TreeSet</tt> ordered by effective
+	 * priority and then by the order in which they started waiting, so
+	 * <tt>nextThread()</tt> and <tt>pickNextThread()</tt> take logarithmic
+	 * time instead of scanning the whole queue.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
-
-		// private boolean transferPriority;
-
 		PriorityQueue(boolean transferPriority) {
 			this.transferPriority = transferPriority;
 		}
 
 		public void waitForAccess(KThread thread) {
-
 			Lib.assertTrue(Machine.interrupt().disabled());
 
 			getThreadState(thread).waitForAccess(this);
@@ -148,36 +150,54 @@ public class PriorityScheduler extends Scheduler {
 		public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			if (!thread.getName().equals("main")) {
-				getThreadState(thread).acquire(this);
-			}
+			getThreadState(thread).acquire(this);
+		}
+
+		public void acquireShared(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
 
+			getThreadState(thread).acquireShared(this);
 		}
 
-		public KThread nextThread() {
+		public void releaseShared(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			int max = -1;
-			index = 0;
+			getThreadState(thread).releaseShared(this);
+		}
 
-			ThreadState stat = null;
-			ThreadState temp = null;
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
 
-			while((temp = pickNextThread()) != null) {
-				if (temp.getEffectivePriority() > max) {
-					stat = temp;
-					max = temp.getEffectivePriority();
-				}
-			}
+			ThreadState next = pickNextThread();
+
+			if (next == null) {
+				if (owner != null)
+					owner.release(this);
 
-			if (stat == null) {
 				return null;
 			}
 
-			else {
-				return waitQueue.remove(waitQueue.indexOf(stat)).thread;
-			}
+			waitQueue.remove(next);
+			next.waitingOn = null;
+			next.acquire(this);
 
+			return next.thread;
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn != this)
+				return false;
+
+			waitQueue.remove(state);
+			state.waitingOn = null;
+
+			if (transferPriority)
+				updateHolders();
+
+			return true;
 		}
 
 		/**
@@ -186,47 +206,94 @@ public class PriorityScheduler extends Scheduler {
 		 *
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
-
 		protected ThreadState pickNextThread() {
-			if (index < waitQueue.size()) {
-				index++;
+			if (waitQueue.isEmpty())
+				return null;
 
-				return waitQueue.get(index - 1); 
-			}
+			return waitQueue.first();
+		}
+
+		/**
+		 * Return the priority this queue donates to its owner: the effective
+		 * priority of the first waiting thread, or <tt>priorityMinimum</tt>
+		 * if this queue does not transfer priority or has no waiters.
+		 *
+		 * @return the priority donated to the owner of this queue.
+		 */
+		protected int getDonation() {
+			if (!transferPriority || waitQueue.isEmpty())
+				return priorityMinimum;
+
+			return waitQueue.first().effectivePriority;
+		}
 
-			return null;
+		/**
+		 * Recompute the effective priority of the owner and of every thread
+		 * sharing access, after the donation of this queue changed.
+		 */
+		protected void updateHolders() {
+			if (owner != null)
+				owner.updateEffectivePriority();
 
+			for (Iterator<ThreadState> i = sharers.iterator(); i.hasNext();)
+				i.next().updateEffectivePriority();
 		}
 
-		@Override
 		public void print() {
-			// TODO Auto-generated method stub
+			Lib.assertTrue(Machine.interrupt().disabled());
 
+			for (Iterator<ThreadState> i = waitQueue.iterator(); i.hasNext();) {
+				ThreadState state = i.next();
+				System.out.print(state.thread + "(" + state.effectivePriority
+						+ ") ");
+			}
 		}
 
-		public ThreadState linkThread = null;
-		public LinkedList<ThreadState> waitQueue = new LinkedList<ThreadState>();
+		/**
+		 * <tt>true</tt> if this queue should transfer priority from waiting
+		 * threads to the owning thread.
+		 */
 		public boolean transferPriority;
-		private int index;
-
+		/**
+		 * The thread that currently holds the resource guarded by this queue.
+		 */
+		protected ThreadState owner = null;
+		/**
+		 * The threads that share the resource guarded by this queue.
+		 */
+		protected HashSet<ThreadState> sharers = new HashSet<ThreadState>();
+		/**
+		 * The waiting threads, highest effective priority first.
+		 */
+		protected TreeSet<ThreadState> waitQueue = new TreeSet<ThreadState>(
+				new Comparator<ThreadState>() {
+					public int compare(ThreadState a, ThreadState b) {
+						if (a.effectivePriority != b.effectivePriority)
+							return b.effectivePriority - a.effectivePriority;
+						else if (a.enqueueTime != b.enqueueTime)
+							return a.enqueueTime < b.enqueueTime ? -1 : 1;
+						else
+							return 0;
+					}
+				});
 	}
 
 	/**
-	 * This method returns the effectivePriority of this PriorityQueue. The
-	 * return value is cached for as long as possible. If the cached value
-	 * has been invalidated, this method will spawn a series of mutually
-	 * recursive calls needed to recalculate effectivePriorities across the
-	 * entire resource graph.
-	 * 
-	 * @return
+	 * A counter used to order threads of equal priority by the time they
+	 * started waiting.
 	 */
-
+	private long enqueueCount = 0;
 
 	/**
 	 * The scheduling state of a thread. This should include the thread's
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 *
+	 * <p>
+	 * The effective priority is cached and only recomputed when a donation
+	 * into this thread changes. A change is pushed along the chain of owners
+	 * and stops as soon as some thread's effective priority is unaffected.
+	 *
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 	protected class ThreadState {
@@ -237,25 +304,19 @@ public class PriorityScheduler extends Scheduler {
 		 * @param thread
 		 *            the thread this state belongs to.
 		 */
-
 		public ThreadState(KThread thread) {
-
-			// current thread
 			this.thread = thread;
 
-			setPriority(priorityDefault);
-			waitQueue = new PriorityQueue(true);
-
+			this.priority = priorityDefault;
+			this.effectivePriority = priorityDefault;
 		}
 
-
 		/**
 		 * Return the priority of the associated thread.
 		 *
 		 * @return the priority of the associated thread.
 		 */
 		public int getPriority() {
-
 			return priority;
 		}
 
@@ -265,20 +326,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			effectivePriority = -1;
-
-			for (int i = 0; i < waitQueue.waitQueue.size(); i++) {
-				if (waitQueue.waitQueue.get(i).getEffectivePriority() > effectivePriority) {
-					effectivePriority = waitQueue.waitQueue.get(i).getEffectivePriority();
-				}
-			}
-
-			if (effectivePriority > priority) {
-				setPriority(effectivePriority);
-			}
-
-			return priority;
-
+			return effectivePriority;
 		}
 
 		/**
@@ -288,12 +336,12 @@ public class PriorityScheduler extends Scheduler {
 		 *            the new priority.
 		 */
 		public void setPriority(int priority) {
-
 			if (this.priority == priority)
 				return;
 
 			this.priority = priority;
 
+			updateEffectivePriority();
 		}
 
 		/**
@@ -308,12 +356,17 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
 
-			waitQueue.waitQueue.add(this);
+			if (waitQueue.owner == this)
+				release(waitQueue);
 
-			if (waitQueue.linkThread != this && waitQueue.linkThread != null)
-				waitQueue.linkThread.waitQueue.waitForAccess(this.thread);
+			enqueueTime = enqueueCount++;
+			waitingOn = waitQueue;
+			waitQueue.waitQueue.add(this);
 
+			if (waitQueue.transferPriority)
+				waitQueue.updateHolders();
 		}
 
 		/**
@@ -327,9 +380,48 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
+			if (waitQueue.owner != null && waitQueue.owner != this)
+				waitQueue.owner.release(waitQueue);
+
+			waitQueue.owner = this;
 
-			Lib.assertTrue(waitQueue.waitQueue.isEmpty());
-			waitQueue.linkThread = this;
+			if (waitQueue.transferPriority && acquired.add(waitQueue))
+				updateEffectivePriority();
+		}
+
+		/**
+		 * Called when the associated thread has received shared access to
+		 * whatever is guarded by <tt>waitQueue</tt>. The owner, if any, gives
+		 * up its access, and the waiting threads donate to this thread along
+		 * with the other sharers.
+		 *
+		 * @param waitQueue
+		 *            the queue corresponding to the shared resource.
+		 * @see nachos.threads.ThreadQueue#acquireShared
+		 */
+		public void acquireShared(PriorityQueue waitQueue) {
+			if (waitQueue.owner != null)
+				waitQueue.owner.release(waitQueue);
+
+			waitQueue.sharers.add(this);
+
+			if (waitQueue.transferPriority && acquired.add(waitQueue))
+				updateEffectivePriority();
+		}
+
+		/**
+		 * Called when the associated thread has given up the shared access it
+		 * had to whatever is guarded by <tt>waitQueue</tt>.
+		 *
+		 * @param waitQueue
+		 *            the queue corresponding to the shared resource.
+		 * @see nachos.threads.ThreadQueue#releaseShared
+		 */
+		public void releaseShared(PriorityQueue waitQueue) {
+			Lib.assertTrue(waitQueue.sharers.remove(this));
+
+			if (acquired.remove(waitQueue))
+				updateEffectivePriority();
 		}
 
 		/**
@@ -339,9 +431,46 @@ public class PriorityScheduler extends Scheduler {
 		 * @param waitQueue
 		 *            The waitQueue corresponding to the relinquished resource.
 		 */
+		public void release(PriorityQueue waitQueue) {
+			Lib.assertTrue(waitQueue.owner == this);
+
+			waitQueue.owner = null;
+
+			if (acquired.remove(waitQueue))
+				updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread from its
+		 * own priority and the donations of the queues it holds. If the value
+		 * changes, reposition this thread in the queue it is waiting on and
+		 * pass the change on to that queue's owner.
+		 */
+		protected void updateEffectivePriority() {
+			int newPriority = priority;
+
+			for (Iterator<PriorityQueue> i = acquired.iterator(); i.hasNext();)
+				newPriority = Math.max(newPriority, i.next().getDonation());
+
+			if (newPriority == effectivePriority)
+				return;
+
+			if (waitingOn == null) {
+				effectivePriority = newPriority;
+				return;
+			}
 
+			PriorityQueue queue = waitingOn;
+			int oldDonation = queue.getDonation();
+
+			queue.waitQueue.remove(this);
+			effectivePriority = newPriority;
+			queue.waitQueue.add(this);
+
+			if (queue.getDonation() != oldDonation)
+				queue.updateHolders();
+		}
 
-		// change the variables like in above
 		/**
 		 * The thread with which this object is associated.
 		 */
@@ -350,19 +479,21 @@ public class PriorityScheduler extends Scheduler {
 		 * The priority of the associated thread.
 		 */
 		protected int priority;
-
-		/**
-		 * True if effective priority has been invalidated for this ThreadState.
-		 */
-		// protected boolean priorityChange = false;
 		/**
 		 * Holds the effective priority of this Thread State.
 		 */
 		protected int effectivePriority;
-
-		protected PriorityQueue waitQueue;
-
-
-
+		/**
+		 * The priority-transferring queues whose resources this thread holds.
+		 */
+		protected HashSet<PriorityQueue> acquired = new HashSet<PriorityQueue>();
+		/**
+		 * The queue this thread is waiting on, or <tt>null</tt>.
+		 */
+		protected PriorityQueue waitingOn = null;
+		/**
+		 * When this thread started waiting on <tt>waitingOn</tt>.
+		 */
+		protected long enqueueTime;
 	}
 }
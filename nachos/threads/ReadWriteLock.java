@@ -0,0 +1,266 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A <tt>ReadWriteLock</tt> lets any number of readers hold it at once, or a
+ * single writer. The operations are:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds or is waiting for
+ * the lock, then join the readers.
+ * <li><tt>releaseRead()</tt>: leave the readers, handing the lock to a
+ * waiting writer if this was the last one.
+ * <li><tt>acquireWrite()</tt>: wait until the lock is free, then hold it
+ * alone.
+ * <li><tt>releaseWrite()</tt>: free the lock, letting in the readers that
+ * arrived while it was held, or else the next writer.
+ * </ul>
+ *
+ * <p>
+ * Writers are preferred: a new reader does not get in while a writer is
+ * waiting. The readers that were held up are let in together when that
+ * writer releases the lock, so neither side starves.
+ *
+ * <p>
+ * Waiting writers donate priority to the readers through a queue created with
+ * <tt>transferPriority</tt>, which every reader holds through
+ * <tt>acquireShared()</tt>, so each reader the writers wait for is boosted at
+ * once. Readers waiting behind the writers donate to every writer that holds
+ * or is waiting for the lock in the same way.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new reader-writer lock. The lock will initially be free.
+     */
+    public ReadWriteLock() {
+    }
+
+    /**
+     * Atomically acquire this lock for reading. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && waitingWriters == 0) {
+	    readers.add(thread);
+	    writeQueue.acquireShared(thread);
+	}
+	else {
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(readers.contains(thread));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock after reading.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(readers.contains(thread));
+
+	readers.remove(thread);
+	writeQueue.releaseShared(thread);
+
+	if (readers.isEmpty() && (writer = writeQueue.nextThread()) != null) {
+	    waitingWriters--;
+	    writer.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	readQueue.acquireShared(thread);
+
+	if (writer == null && readers.isEmpty()) {
+	    writer = thread;
+	    writeQueue.acquire(thread);
+	}
+	else {
+	    waitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock after writing.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	readQueue.releaseShared(writer);
+	writer = null;
+
+	KThread thread;
+	while ((thread = readQueue.nextThread()) != null) {
+	    readers.add(thread);
+	    writeQueue.acquireShared(thread);
+	    thread.ready();
+	}
+
+	if (readers.isEmpty() && (writer = writeQueue.nextThread()) != null) {
+	    waitingWriters--;
+	    writer.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock for reading or writing.
+     *
+     * @return	true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	boolean held = (writer == thread || readers.contains(thread));
+
+	Machine.interrupt().restore(intStatus);
+	return held;
+    }
+
+    /**
+     * Test that readers and writers exclude each other, and that a waiting
+     * writer donates to every reader it waits for.
+     */
+    public static void selfTest() {
+	final ReadWriteLock lock = new ReadWriteLock();
+	final int[] holders = new int[2];
+	final Semaphore done = new Semaphore(0);
+
+	for (int i=0; i<5; i++) {
+	    final boolean write = (i % 2 == 1);
+
+	    new KThread(new Runnable() {
+		public void run() {
+		    for (int j=0; j<5; j++) {
+			if (write) {
+			    lock.acquireWrite();
+			    Lib.assertTrue(holders[0] == 0 && holders[1] == 0);
+			}
+			else {
+			    lock.acquireRead();
+			    Lib.assertTrue(holders[1] == 0);
+			}
+
+			holders[write ? 1 : 0]++;
+			KThread.yield();
+			holders[write ? 1 : 0]--;
+
+			if (write)
+			    lock.releaseWrite();
+			else
+			    lock.releaseRead();
+			KThread.yield();
+		    }
+		    done.V();
+		}
+	    }).setName(write ? "rw writer" : "rw reader").fork();
+	}
+
+	for (int i=0; i<5; i++)
+	    done.P();
+
+	// hold the lock with two readers, then block a high-priority writer
+	final Semaphore readersIn = new Semaphore(0);
+	final Semaphore gate = new Semaphore(0);
+	KThread[] readers = new KThread[2];
+
+	for (int i=0; i<readers.length; i++) {
+	    readers[i] = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireRead();
+		    readersIn.V();
+		    gate.P();
+		    lock.releaseRead();
+		    done.V();
+		}
+	    }).setName("rw donee");
+	    readers[i].fork();
+	    readersIn.P();
+	}
+
+	KThread writer = new KThread(new Runnable() {
+	    public void run() {
+		lock.acquireWrite();
+		Lib.assertTrue(lock.readers.isEmpty());
+		lock.releaseWrite();
+		done.V();
+	    }
+	}).setName("rw donor");
+
+	boolean intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(writer, 6);
+	Machine.interrupt().restore(intStatus);
+
+	writer.fork();
+	while (lock.waitingWriters == 0)
+	    KThread.yield();
+
+	Scheduler scheduler = ThreadedKernel.scheduler;
+	if (scheduler instanceof PriorityScheduler ||
+	    scheduler instanceof LotteryScheduler ||
+	    scheduler instanceof StrideScheduler) {
+	    intStatus = Machine.interrupt().disable();
+	    for (int i=0; i<readers.length; i++) {
+		Lib.assertTrue(scheduler.getEffectivePriority(readers[i]) >= 6,
+			       "reader not boosted by waiting writer");
+	    }
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	for (int i=0; i<readers.length; i++)
+	    gate.V();
+	for (int i=0; i<readers.length+1; i++)
+	    done.P();
+    }
+
+    private KThread writer = null;
+    private LinkedList<KThread> readers = new LinkedList<KThread>();
+    private int waitingWriters = 0;
+
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
@@ -58,6 +58,18 @@ public class RoundRobinScheduler extends Scheduler {
 	    return (KThread) waitQueue.removeFirst();
 	}
 
+	/**
+	 * Remove a thread from anywhere in the queue.
+	 *
+	 * @param	thread	the thread to remove.
+	 * @return	<tt>true</tt> if the thread was on the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    return waitQueue.remove(thread);
+	}
+
 	/**
 	 * The specified thread has received exclusive access, without using
 	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
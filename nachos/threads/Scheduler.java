@@ -154,4 +154,25 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called when the specified thread starts running, from
+	 * <tt>KThread.restoreState()</tt>. Must be called with interrupts
+	 * disabled. Schedulers that account for CPU time can note the time here;
+	 * the default does nothing.
+	 *
+	 * @param	thread	the thread that is now running.
+	 */
+	public void runningThread(KThread thread) {
+	}
+
+	/**
+	 * Called when the specified thread gives up the processor, from
+	 * <tt>KThread.saveState()</tt>. Must be called with interrupts disabled.
+	 * The thread may already be waiting on a queue. The default does nothing.
+	 *
+	 * @param	thread	the thread that is no longer running.
+	 */
+	public void stoppingThread(KThread thread) {
+	}
 }
@@ -0,0 +1,312 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A kernel that compares schedulers on a synthetic workload. Select it with
+ * <tt>Kernel.kernel = nachos.threads.SchedulerBench</tt>. The workload is run
+ * once under each scheduler listed, comma separated, in
+ * <tt>SchedulerBench.schedulers</tt>; by default the round robin, priority
+ * and lottery schedulers. The scheduler is replaced between runs, when only
+ * the main thread is left.
+ *
+ * <p>
+ * The workload mixes three kinds of threads, each running
+ * <tt>SchedulerBench.rounds</tt> jobs:
+ * <ul>
+ * <li>CPU-bound threads (<tt>SchedulerBench.cpuThreads</tt>) compute for
+ * <tt>SchedulerBench.cpuBurst</tt> kernel ticks and yield;
+ * <li>I/O-bound threads (<tt>SchedulerBench.ioThreads</tt>) sleep in the
+ * alarm for <tt>SchedulerBench.sleepTicks</tt>;
+ * <li>lock-contending threads (<tt>SchedulerBench.lockThreads</tt>) hold one
+ * shared lock for <tt>SchedulerBench.lockBurst</tt> kernel ticks, yielding
+ * once while holding it.
+ * </ul>
+ *
+ * <p>
+ * The report gives the throughput in jobs per 1000 ticks, the mean and 99th
+ * percentile wait of each kind (time to get the processor back after a
+ * yield, wakeup delay after a sleep, and time to acquire the lock), the
+ * number of context switches, and the host time spent in the scheduler per
+ * call of <tt>nextThread()</tt> and of <tt>waitForAccess()</tt>, over all of
+ * its queues.
+ */
+public class SchedulerBench extends ThreadedKernel {
+    /**
+     * Allocate a new scheduler benchmark kernel.
+     */
+    public SchedulerBench() {
+	super();
+    }
+
+    /**
+     * Initialize this kernel, and interpose on the scheduler to count context
+     * switches and time the queue operations.
+     */
+    public void initialize(String[] args) {
+	super.initialize(args);
+
+	cpuThreads = Config.getInteger("SchedulerBench.cpuThreads", 8);
+	ioThreads = Config.getInteger("SchedulerBench.ioThreads", 4);
+	lockThreads = Config.getInteger("SchedulerBench.lockThreads", 4);
+	rounds = Config.getInteger("SchedulerBench.rounds", 50);
+	cpuBurst = Config.getInteger("SchedulerBench.cpuBurst", 200);
+	lockBurst = Config.getInteger("SchedulerBench.lockBurst", 50);
+	sleepTicks = Config.getInteger("SchedulerBench.sleepTicks", 2000);
+	schedulers = Config.getString("SchedulerBench.schedulers",
+				      "nachos.threads.RoundRobinScheduler,"
+				      + "nachos.threads.PriorityScheduler,"
+				      + "nachos.threads.LotteryScheduler").split(",");
+
+	counter = new CountingScheduler(scheduler);
+	scheduler = counter;
+    }
+
+    /**
+     * The benchmark does not run the self tests, so that they do not disturb
+     * the measurements.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run the workload under each scheduler in turn.
+     */
+    public void run() {
+	for (int i=0; i<schedulers.length; i++) {
+	    String name = schedulers[i].trim();
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    counter.scheduler = (Scheduler) Lib.constructObject(name);
+	    KThread.replaceReadyQueue();
+	    Machine.interrupt().restore(intStatus);
+
+	    runWorkload(name);
+	}
+    }
+
+    /**
+     * Run the workload under the current scheduler and print the report.
+     */
+    private void runWorkload(String schedulerName) {
+	final long[] cpuWaits = new long[cpuThreads * rounds];
+	final long[] ioWaits = new long[ioThreads * rounds];
+	final long[] lockWaits = new long[lockThreads * rounds];
+	final Lock lock = new Lock();
+	final Semaphore done = new Semaphore(0);
+
+	KThread[] threads = new KThread[cpuThreads + ioThreads + lockThreads];
+	int n = 0;
+
+	for (int i=0; i<cpuThreads; i++) {
+	    final int base = i * rounds;
+	    threads[n++] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<rounds; j++) {
+			    compute(cpuBurst);
+			    long start = Machine.timer().getTime();
+			    KThread.yield();
+			    cpuWaits[base + j] = Machine.timer().getTime() - start;
+			}
+			done.V();
+		    }
+		}).setName("cpu " + i);
+	}
+
+	for (int i=0; i<ioThreads; i++) {
+	    final int base = i * rounds;
+	    threads[n++] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<rounds; j++) {
+			    long wake = Machine.timer().getTime() + sleepTicks;
+			    alarm.waitUntil(sleepTicks);
+			    ioWaits[base + j] = Machine.timer().getTime() - wake;
+			}
+			done.V();
+		    }
+		}).setName("io " + i);
+	}
+
+	for (int i=0; i<lockThreads; i++) {
+	    final int base = i * rounds;
+	    threads[n++] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<rounds; j++) {
+			    long start = Machine.timer().getTime();
+			    lock.acquire();
+			    lockWaits[base + j] = Machine.timer().getTime() - start;
+			    compute(lockBurst);
+			    KThread.yield();
+			    lock.release();
+			}
+			done.V();
+		    }
+		}).setName("lock " + i);
+	}
+
+	long startTicks = Machine.timer().getTime();
+	counter.reset();
+
+	// wait on a semaphore rather than join(), which does not wait for a
+	// particular thread
+	for (int i=0; i<threads.length; i++)
+	    threads[i].fork();
+	for (int i=0; i<threads.length; i++)
+	    done.P();
+
+	long ticks = Machine.timer().getTime() - startTicks;
+	long jobs = (long) threads.length * rounds;
+
+	System.out.println("SchedulerBench: " + schedulerName + ", "
+			   + cpuThreads + " cpu, " + ioThreads + " io, "
+			   + lockThreads + " lock threads, " + rounds
+			   + " rounds");
+	System.out.println("  throughput: "
+			   + (Math.round(jobs * 100000.0 / Math.max(ticks, 1)) / 100.0)
+			   + " jobs per 1000 ticks (" + jobs + " jobs in "
+			   + ticks + " ticks)");
+	report("cpu wait", cpuWaits);
+	report("io wakeup delay", ioWaits);
+	report("lock wait", lockWaits);
+	System.out.println("  context switches: " + counter.switches);
+	System.out.println("  host ns per nextThread: "
+			   + (counter.nextNanos / Math.max(counter.nextCalls, 1))
+			   + " (" + counter.nextCalls + " calls), per waitForAccess: "
+			   + (counter.waitNanos / Math.max(counter.waitCalls, 1))
+			   + " (" + counter.waitCalls + " calls)");
+    }
+
+    /**
+     * Spend approximately <i>ticks</i> of simulated time in the kernel.
+     */
+    private static void compute(int ticks) {
+	for (int i=0; i<ticks; i+=Stats.KernelTick) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    Machine.interrupt().restore(intStatus);
+	}
+    }
+
+    private static void report(String name, long[] waits) {
+	if (waits.length == 0)
+	    return;
+
+	long total = 0;
+	for (int i=0; i<waits.length; i++)
+	    total += waits[i];
+
+	Arrays.sort(waits);
+
+	System.out.println("  " + name + ": mean " + (total / waits.length)
+			   + ", p99 " + waits[(waits.length - 1) * 99 / 100]
+			   + " ticks");
+    }
+
+    /**
+     * A scheduler that passes everything on to the scheduler being measured,
+     * counts the threads it sees start running, and times the queues it hands
+     * out.
+     */
+    private static class CountingScheduler extends Scheduler {
+	CountingScheduler(Scheduler scheduler) {
+	    this.scheduler = scheduler;
+	}
+
+	void reset() {
+	    switches = 0;
+	    nextCalls = nextNanos = 0;
+	    waitCalls = waitNanos = 0;
+	}
+
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+	    return new CountingQueue(scheduler.newThreadQueue(transferPriority));
+	}
+
+	public int getPriority(KThread thread) {
+	    return scheduler.getPriority(thread);
+	}
+
+	public int getEffectivePriority(KThread thread) {
+	    return scheduler.getEffectivePriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+	    scheduler.setPriority(thread, priority);
+	}
+
+	public boolean increasePriority() {
+	    return scheduler.increasePriority();
+	}
+
+	public boolean decreasePriority() {
+	    return scheduler.decreasePriority();
+	}
+
+	public void runningThread(KThread thread) {
+	    switches++;
+	    scheduler.runningThread(thread);
+	}
+
+	public void stoppingThread(KThread thread) {
+	    scheduler.stoppingThread(thread);
+	}
+
+	/**
+	 * A queue that passes everything on to a queue of the scheduler being
+	 * measured, timing <tt>nextThread()</tt> and <tt>waitForAccess()</tt>.
+	 */
+	private class CountingQueue extends ThreadQueue {
+	    CountingQueue(ThreadQueue queue) {
+		this.queue = queue;
+	    }
+
+	    public void waitForAccess(KThread thread) {
+		long start = System.nanoTime();
+		queue.waitForAccess(thread);
+		waitNanos += System.nanoTime() - start;
+		waitCalls++;
+	    }
+
+	    public KThread nextThread() {
+		long start = System.nanoTime();
+		KThread thread = queue.nextThread();
+		nextNanos += System.nanoTime() - start;
+		nextCalls++;
+		return thread;
+	    }
+
+	    public void acquire(KThread thread) {
+		queue.acquire(thread);
+	    }
+
+	    public void acquireShared(KThread thread) {
+		queue.acquireShared(thread);
+	    }
+
+	    public void releaseShared(KThread thread) {
+		queue.releaseShared(thread);
+	    }
+
+	    public boolean remove(KThread thread) {
+		return queue.remove(thread);
+	    }
+
+	    public void print() {
+		queue.print();
+	    }
+
+	    private ThreadQueue queue;
+	}
+
+	private Scheduler scheduler;
+	private long switches = 0;
+	private long nextCalls = 0, nextNanos = 0;
+	private long waitCalls = 0, waitNanos = 0;
+    }
+
+    private int cpuThreads, ioThreads, lockThreads, rounds;
+    private int cpuBurst, lockBurst, sleepTicks;
+    private String[] schedulers;
+    private CountingScheduler counter;
+}
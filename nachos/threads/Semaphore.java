@@ -28,7 +28,19 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+	this(initialValue, null);
+    }
+
+    /**
+     * Allocate a new semaphore, recording its contention under <i>name</i> if
+     * <tt>ThreadedKernel.profileLocks</tt> is set.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	name		the name to profile this semaphore under.
+     */
+    public Semaphore(int initialValue, String name) {
 	value = initialValue;
+	profile = LockProfile.forInstance(Semaphore.class, name);
     }
 
     /**
@@ -36,8 +48,10 @@ public class Semaphore {
      */
     public void P() {
 	boolean intStatus = Machine.interrupt().disable();
+	long requestTime = (profile != null) ? Machine.timer().getTime() : 0;
+	boolean contended = (value == 0);
 
-	if (value == 0) {
+	if (contended) {
 	    waitQueue.waitForAccess(KThread.currentThread());
 	    KThread.sleep();
 	}
@@ -45,7 +59,48 @@ public class Semaphore {
 	    value--;
 	}
 
+	if (profile != null)
+	    profile.acquired(requestTime, contended);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wait at most <i>timeout</i> ticks for this semaphore to become non-zero
+     * and decrement it.
+     *
+     * @param	timeout	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the time ran out first.
+     */
+    public boolean P(long timeout) {
+	boolean intStatus = Machine.interrupt().disable();
+	long requestTime = (profile != null) ? Machine.timer().getTime() : 0;
+	boolean contended = (value == 0);
+	boolean decremented;
+
+	if (!contended) {
+	    value--;
+	    decremented = true;
+	}
+	else if (timeout <= 0) {
+	    decremented = false;
+	}
+	else {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    decremented = ThreadedKernel.alarm.sleepFor(timeout,
+							new Alarm.Waiter() {
+		    public boolean remove(KThread thread) {
+			return waitQueue.remove(thread);
+		    }
+		});
+	}
+
+	if (profile != null && decremented)
+	    profile.acquired(requestTime, contended);
+
 	Machine.interrupt().restore(intStatus);
+	return decremented;
     }
 
     /**
@@ -101,4 +156,6 @@ public class Semaphore {
     private int value;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
+
+    private LockProfile profile;
 }
@@ -0,0 +1,627 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.WeakHashMap;
+
+/**
+ * A scheduler that shares access among threads in proportion to their
+ * tickets, deterministically.
+ * <p/>
+ * <p/>
+ * A stride scheduler associates a number of tickets with each thread, and
+ * derives a <i>stride</i> inversely proportional to them. Each queue keeps its
+ * waiting threads in a binary heap ordered by <i>pass</i>; the thread with the
+ * smallest pass is dequeued next and its pass advances by its stride. Over any
+ * interval a thread is dequeued in proportion to its tickets, like a
+ * <tt>LotteryScheduler</tt>, but without the variance of random draws. A
+ * thread has a separate pass on every queue, so taking a lock or joining a
+ * thread does not use up its share of the ready queue.
+ * <p/>
+ * <p/>
+ * Like a lottery scheduler, tickets are transferred through locks and joins,
+ * and donated tickets add to the tickets of the owning thread. When a waiting
+ * thread's tickets change, the remainder of its current stride is rescaled so
+ * the change takes effect immediately.
+ */
+public class StrideScheduler extends Scheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param transferPriority
+	 *            <tt>true</tt> if this queue should transfer tickets from
+	 *            waiting threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).getPriority();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).getEffectivePriority();
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum && priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * The stride of a thread holding a single ticket. Strides of threads
+	 * holding more tickets than this are rounded up to one.
+	 */
+	public static final long stride1 = 1L << 30;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A counter used to order threads of equal pass by the time they started
+	 * waiting.
+	 */
+	private long enqueueCount = 0;
+
+	/**
+	 * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the
+	 * smallest pass. Waiting threads are kept in an array-backed binary heap,
+	 * and each thread remembers its index so it can be repositioned in
+	 * logarithmic time.
+	 */
+	protected class StrideQueue extends ThreadQueue {
+		StrideQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			getThreadState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			getThreadState(thread).acquire(this);
+		}
+
+		public void acquireShared(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			getThreadState(thread).acquireShared(this);
+		}
+
+		public void releaseShared(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			getThreadState(thread).releaseShared(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState next = pickNextThread();
+
+			if (next == null) {
+				if (owner != null)
+					owner.release(this);
+
+				return null;
+			}
+
+			next.leave();
+
+			pass = next.pass;
+			next.queuePass.pass = next.pass + next.stride();
+
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn != this)
+				return false;
+
+			state.leave();
+			return true;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 *
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected ThreadState pickNextThread() {
+			if (size == 0)
+				return null;
+
+			return heap[0];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + "(" + heap[i].pass + ") ");
+		}
+
+		/**
+		 * Pass a change in the waiting tickets on to the owner and to every
+		 * thread sharing access.
+		 */
+		protected void donate(long delta) {
+			if (!transferPriority)
+				return;
+
+			if (owner != null)
+				owner.adjust(delta);
+
+			for (Iterator<ThreadState> i = sharers.iterator(); i.hasNext();)
+				i.next().adjust(delta);
+		}
+
+		/**
+		 * Insert a thread into the heap.
+		 */
+		protected void add(ThreadState state) {
+			if (size == heap.length) {
+				ThreadState[] newHeap = new ThreadState[Math.max(8,
+						heap.length * 2)];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
+			}
+
+			heap[size] = state;
+			state.heapIndex = size;
+			size++;
+
+			siftUp(state.heapIndex);
+		}
+
+		/**
+		 * Remove a thread from the heap.
+		 */
+		protected void remove(ThreadState state) {
+			int index = state.heapIndex;
+
+			size--;
+			state.heapIndex = -1;
+
+			if (index == size) {
+				heap[size] = null;
+				return;
+			}
+
+			heap[index] = heap[size];
+			heap[index].heapIndex = index;
+			heap[size] = null;
+
+			siftUp(index);
+			siftDown(heap[index].heapIndex);
+		}
+
+		/**
+		 * Restore the heap order after the pass of a thread changed.
+		 */
+		protected void update(ThreadState state) {
+			siftUp(state.heapIndex);
+			siftDown(state.heapIndex);
+		}
+
+		private boolean before(ThreadState a, ThreadState b) {
+			if (a.pass != b.pass)
+				return a.pass < b.pass;
+			else
+				return a.enqueueTime < b.enqueueTime;
+		}
+
+		private void siftUp(int index) {
+			ThreadState state = heap[index];
+
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				heap[index] = heap[parent];
+				heap[index].heapIndex = index;
+				index = parent;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private void siftDown(int index) {
+			ThreadState state = heap[index];
+
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], state))
+					break;
+
+				heap[index] = heap[child];
+				heap[index].heapIndex = index;
+				index = child;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+		/**
+		 * The thread that currently holds the resource guarded by this queue.
+		 */
+		protected ThreadState owner = null;
+		/**
+		 * The threads that share the resource guarded by this queue.
+		 */
+		protected HashSet<ThreadState> sharers = new HashSet<ThreadState>();
+		/**
+		 * The total effective tickets of the waiting threads.
+		 */
+		protected long tickets = 0;
+		/**
+		 * The pass of the thread most recently dequeued. Threads joining the
+		 * queue start no earlier than this.
+		 */
+		protected long pass = 0;
+
+		private ThreadState[] heap = new ThreadState[0];
+		private int size = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its tickets, its effective tickets
+	 * including donations, its pass, and the queue it's waiting on, if any.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread
+		 *            the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+
+			this.priority = priorityDefault;
+			this.effectiveTickets = priorityDefault;
+		}
+
+		/**
+		 * Return the tickets of the associated thread.
+		 *
+		 * @return the tickets of the associated thread.
+		 */
+		public int getPriority() {
+			return priority;
+		}
+
+		/**
+		 * Return the tickets of the associated thread including donations,
+		 * saturated at <tt>priorityMaximum</tt>.
+		 *
+		 * @return the effective tickets of the associated thread.
+		 */
+		public int getEffectivePriority() {
+			return (int) Math.min(effectiveTickets, priorityMaximum);
+		}
+
+		/**
+		 * Set the tickets of the associated thread to the specified value.
+		 *
+		 * @param priority
+		 *            the new number of tickets.
+		 */
+		public void setPriority(int priority) {
+			if (this.priority == priority)
+				return;
+
+			long delta = (long) priority - this.priority;
+			this.priority = priority;
+
+			adjust(delta);
+		}
+
+		/**
+		 * Return the stride of the associated thread.
+		 *
+		 * @return <tt>stride1</tt> divided by the effective tickets.
+		 */
+		public long stride() {
+			return Math.max(1, stride1 / effectiveTickets);
+		}
+
+		/**
+		 * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+		 * the associated thread) is invoked on the specified queue.
+		 *
+		 * @param waitQueue
+		 *            the queue that the associated thread is now waiting on.
+		 * @see nachos.threads.ThreadQueue#waitForAccess
+		 */
+		public void waitForAccess(StrideQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
+
+			if (waitQueue.owner == this)
+				release(waitQueue);
+
+			queuePass = passes.get(waitQueue);
+			if (queuePass == null) {
+				queuePass = new QueuePass();
+				passes.put(waitQueue, queuePass);
+			}
+
+			pass = Math.max(queuePass.pass, waitQueue.pass);
+
+			enqueueTime = enqueueCount++;
+			waitingOn = waitQueue;
+			waitQueue.add(this);
+			waitQueue.tickets += effectiveTickets;
+
+			waitQueue.donate(effectiveTickets);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>.
+		 *
+		 * @see nachos.threads.ThreadQueue#acquire
+		 * @see nachos.threads.ThreadQueue#nextThread
+		 */
+		public void acquire(StrideQueue waitQueue) {
+			if (waitQueue.owner == this)
+				return;
+
+			if (waitQueue.owner != null)
+				waitQueue.owner.release(waitQueue);
+
+			waitQueue.owner = this;
+
+			if (waitQueue.transferPriority)
+				adjust(waitQueue.tickets);
+		}
+
+		/**
+		 * Called when the associated thread has received shared access to
+		 * whatever is guarded by <tt>waitQueue</tt>. The owner, if any, gives
+		 * up its access, and the waiting threads' tickets are added to this
+		 * thread as to every other sharer.
+		 *
+		 * @see nachos.threads.ThreadQueue#acquireShared
+		 */
+		public void acquireShared(StrideQueue waitQueue) {
+			if (waitQueue.owner != null)
+				waitQueue.owner.release(waitQueue);
+
+			if (waitQueue.sharers.add(this) && waitQueue.transferPriority)
+				adjust(waitQueue.tickets);
+		}
+
+		/**
+		 * Called when the associated thread has given up the shared access it
+		 * had to whatever is guarded by <tt>waitQueue</tt>.
+		 *
+		 * @see nachos.threads.ThreadQueue#releaseShared
+		 */
+		public void releaseShared(StrideQueue waitQueue) {
+			Lib.assertTrue(waitQueue.sharers.remove(this));
+
+			if (waitQueue.transferPriority)
+				adjust(-waitQueue.tickets);
+		}
+
+		/**
+		 * Called when the associated thread has relinquished access to whatever
+		 * is guarded by <tt>waitQueue</tt>.
+		 *
+		 * @param waitQueue
+		 *            the queue corresponding to the relinquished resource.
+		 */
+		public void release(StrideQueue waitQueue) {
+			Lib.assertTrue(waitQueue.owner == this);
+
+			waitQueue.owner = null;
+
+			if (waitQueue.transferPriority)
+				adjust(-waitQueue.tickets);
+		}
+
+		/**
+		 * Stop waiting on <tt>waitingOn</tt>, taking back the tickets donated
+		 * to its owner.
+		 */
+		protected void leave() {
+			StrideQueue waitQueue = waitingOn;
+
+			waitQueue.remove(this);
+			waitQueue.tickets -= effectiveTickets;
+			waitingOn = null;
+
+			waitQueue.donate(-effectiveTickets);
+		}
+
+		/**
+		 * Change the effective tickets of the associated thread by
+		 * <tt>delta</tt>. A waiting thread has the rest of its stride rescaled
+		 * and is repositioned, and the change is passed on to the owner and the
+		 * sharers of the queue it waits on.
+		 */
+		protected void adjust(long delta) {
+			ThreadState state = this;
+
+			while (delta != 0 && state != null) {
+				long oldStride = state.stride();
+				state.effectiveTickets += delta;
+
+				StrideQueue waitQueue = state.waitingOn;
+				if (waitQueue == null)
+					break;
+
+				long remaining = state.pass - waitQueue.pass;
+				state.pass = waitQueue.pass
+						+ (long) (remaining * ((double) state.stride() / oldStride));
+
+				waitQueue.tickets += delta;
+				waitQueue.update(state);
+
+				if (!waitQueue.transferPriority)
+					break;
+
+				for (Iterator<ThreadState> i = waitQueue.sharers.iterator(); i
+						.hasNext();)
+					i.next().adjust(delta);
+
+				state = waitQueue.owner;
+			}
+		}
+
+		/**
+		 * The thread with which this object is associated.
+		 */
+		protected KThread thread;
+		/**
+		 * The tickets of the associated thread.
+		 */
+		protected int priority;
+		/**
+		 * The tickets of the associated thread plus all donated tickets.
+		 */
+		protected long effectiveTickets;
+		/**
+		 * The virtual time at which the associated thread is next due on
+		 * <tt>waitingOn</tt>.
+		 */
+		protected long pass = 0;
+		/**
+		 * The pass the associated thread resumes from on each queue it has
+		 * waited on. Queues are weak keys, since a queue can go away while
+		 * the thread lives on.
+		 */
+		protected WeakHashMap<StrideQueue, QueuePass> passes =
+				new WeakHashMap<StrideQueue, QueuePass>();
+		/**
+		 * The entry of <tt>passes</tt> for <tt>waitingOn</tt>, updated in
+		 * place when the thread is dequeued.
+		 */
+		protected QueuePass queuePass = null;
+		/**
+		 * The queue this thread is waiting on, or <tt>null</tt>.
+		 */
+		protected StrideQueue waitingOn = null;
+		/**
+		 * The position of this thread in the heap of <tt>waitingOn</tt>.
+		 */
+		protected int heapIndex = -1;
+		/**
+		 * When this thread started waiting on <tt>waitingOn</tt>.
+		 */
+		protected long enqueueTime;
+	}
+
+	/**
+	 * The pass a thread resumes from on one queue.
+	 */
+	protected static class QueuePass {
+		/**
+		 * The pass of the thread the next time it waits on the queue.
+		 */
+		protected long pass = 0;
+	}
+}
@@ -12,9 +12,23 @@ public class SynchList {
      * Allocate a new synchronized queue.
      */
     public SynchList() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new synchronized queue, recording how long threads wait in
+     * <tt>removeFirst()</tt> for an element under <i>name</i> if
+     * <tt>ThreadedKernel.profileLocks</tt> is set. These waits are reported
+     * as sleeps. The queue's lock is profiled under the same name, and its
+     * contention and hold time are reported there.
+     *
+     * @param	name	the name to profile this queue under.
+     */
+    public SynchList(String name) {
 	list = new LinkedList<Object>();
-	lock = new Lock();
+	lock = new Lock(name);
 	listEmpty = new Condition(lock);
+	profile = LockProfile.forInstance(SynchList.class, name);
     }
 
     /**
@@ -42,8 +56,13 @@ public class SynchList {
 	Object o;
 
 	lock.acquire();
-	while (list.isEmpty())
-	    listEmpty.sleep();
+	if (list.isEmpty()) {
+	    long sleepTime = (profile != null) ? Machine.timer().getTime() : 0;
+	    while (list.isEmpty())
+		listEmpty.sleep();
+	    if (profile != null)
+		profile.slept(sleepTime);
+	}
 	o = list.removeFirst();
 	lock.release();
 
@@ -84,5 +103,6 @@ public class SynchList {
     private LinkedList<Object> list;
     private Lock lock;
     private Condition listEmpty;
+    private LockProfile profile;
 }
 
@@ -91,6 +91,43 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that a thread has received access that it
+     * shares with other threads, such as a reader of a
+     * <tt>ReadWriteLock</tt>. A thread that had access through
+     * <tt>acquire()</tt> or <tt>nextThread()</tt> no longer has it. If the
+     * queue transfers priority, the waiting threads donate priority to every
+     * thread sharing access.
+     *
+     * <p>
+     * The default does nothing, which is right for queues that do not
+     * transfer priority.
+     *
+     * @param	thread	the thread that has received shared access.
+     */
+    public void acquireShared(KThread thread) {
+    }
+
+    /**
+     * Notify this thread queue that a thread has given up the access it
+     * received through <tt>acquireShared()</tt>. Any priority it was being
+     * donated through this queue is taken back.
+     *
+     * @param	thread	the thread giving up shared access.
+     */
+    public void releaseShared(KThread thread) {
+    }
+
+    /**
+     * Stop a thread from waiting for access, without giving it access. This
+     * is used when a timed wait expires. Any priority the thread was donating
+     * through this queue is taken back.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was waiting on this queue.
+     */
+    public abstract boolean remove(KThread thread);
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
@@ -41,7 +41,9 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
+     * <tt>SynchList</tt>, <tt>Condition2</tt>, <tt>ReadWriteLock</tt>,
+     * <tt>BufferedCommunicator</tt>, and <tt>ElevatorBank</tt> classes, and
+     * the <tt>MLFQScheduler</tt> when it is the scheduler. Note that the
      * autograder never calls this method, so it is safe to put additional
      * tests here.
      */	
@@ -49,6 +51,12 @@ public class ThreadedKernel extends Kernel {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	Condition2.selfTest();
+	ReadWriteLock.selfTest();
+	BufferedCommunicator.selfTest();
+	if (scheduler instanceof MLFQScheduler) {
+	    MLFQScheduler.selfTest();
+	}
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -0,0 +1,218 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * An allocator of physical page frames, kept as a hierarchical bitmap. The
+ * bottom level has one bit per frame, set if the frame is free. Each level
+ * above has one bit per word of the level below, set if that word has any
+ * free frame in it, up to a single word at the top. Allocating or freeing a
+ * frame touches one word per level, which is at most four levels for 16
+ * million frames, and the whole structure takes about one bit per frame.
+ *
+ * <p>
+ * The allocator does no synchronization of its own; callers hold
+ * <tt>UserKernel.memoryLock</tt>.
+ */
+public class FrameAllocator {
+	/**
+	 * Allocate a new frame allocator with all frames free.
+	 *
+	 * @param	numFrames	the number of frames to manage.
+	 */
+	public FrameAllocator(int numFrames) {
+		Lib.assertTrue(numFrames > 0);
+
+		this.numFrames = numFrames;
+
+		int height = 1;
+		for (int n = numFrames; n > 64; n = (n + 63) / 64)
+			height++;
+
+		bits = new long[height][];
+		for (int level = 0, n = numFrames; level < height; level++) {
+			bits[level] = new long[(n + 63) / 64];
+			n = bits[level].length;
+		}
+
+		for (int frame = 0; frame < numFrames; frame++)
+			setFree(frame);
+
+		numFree = numFrames;
+	}
+
+	/**
+	 * Return the number of frames that are free.
+	 *
+	 * @return	the number of free frames.
+	 */
+	public int numFree() {
+		return numFree;
+	}
+
+	/**
+	 * Allocate the lowest-numbered free frame.
+	 *
+	 * @return	the frame allocated, or -1 if no frame is free.
+	 */
+	public int allocate() {
+		if (numFree == 0)
+			return -1;
+
+		// walk down from the top, following the lowest set bit at each level
+		int index = 0;
+		for (int level = bits.length - 1; level >= 0; level--)
+			index = index * 64 + Long.numberOfTrailingZeros(bits[level][index]);
+
+		setUsed(index);
+		numFree--;
+
+		return index;
+	}
+
+	/**
+	 * Allocate <i>count</i> frames, or none if fewer than that are free.
+	 *
+	 * @param	count	the number of frames to allocate.
+	 * @return	the frames allocated, in increasing order, or <tt>null</tt>
+	 *		if fewer than <i>count</i> frames are free.
+	 */
+	public int[] allocate(int count) {
+		Lib.assertTrue(count >= 0);
+
+		if (count > numFree)
+			return null;
+
+		int[] frames = new int[count];
+		for (int i = 0; i < count; i++)
+			frames[i] = allocate();
+
+		return frames;
+	}
+
+	/**
+	 * Allocate <i>count</i> frames with consecutive numbers, taking the lowest
+	 * such range that is free. This scans the bottom level of the bitmap, so
+	 * it takes time proportional to the number of frames it skips over, a
+	 * word of 64 at a time where the frames are all free or all in use.
+	 *
+	 * @param	count	the number of frames to allocate.
+	 * @return	the first frame of the range, or -1 if no range of
+	 *		<i>count</i> free frames exists.
+	 */
+	public int allocateRange(int count) {
+		Lib.assertTrue(count > 0);
+
+		if (count > numFree)
+			return -1;
+
+		long[] words = bits[0];
+		int start = 0, run = 0;
+
+		for (int w = 0; w < words.length && run < count; w++) {
+			long word = words[w];
+
+			if (word == -1L) {
+				if (run == 0)
+					start = w * 64;
+				run += 64;
+			}
+			else if (word == 0) {
+				run = 0;
+			}
+			else {
+				for (int b = 0; b < 64 && run < count; b++) {
+					if ((word & (1L << b)) != 0) {
+						if (run == 0)
+							start = w * 64 + b;
+						run++;
+					}
+					else {
+						run = 0;
+					}
+				}
+			}
+		}
+
+		if (run < count)
+			return -1;
+
+		for (int frame = start; frame < start + count; frame++)
+			setUsed(frame);
+		numFree -= count;
+
+		return start;
+	}
+
+	/**
+	 * Free a frame returned by <tt>allocate()</tt> or <tt>allocateRange()</tt>.
+	 *
+	 * @param	frame	the frame to free.
+	 */
+	public void free(int frame) {
+		Lib.assertTrue(frame >= 0 && frame < numFrames);
+		Lib.assertTrue((bits[0][frame / 64] & (1L << (frame % 64))) == 0);
+
+		setFree(frame);
+		numFree++;
+	}
+
+	/**
+	 * Free <i>count</i> consecutive frames starting at <i>first</i>.
+	 *
+	 * @param	first	the first frame to free.
+	 * @param	count	the number of frames to free.
+	 */
+	public void freeRange(int first, int count) {
+		for (int frame = first; frame < first + count; frame++)
+			free(frame);
+	}
+
+	/**
+	 * Mark a frame free, marking each level above as having free frames
+	 * where a word goes from empty to non-empty.
+	 */
+	private void setFree(int frame) {
+		int index = frame;
+
+		for (int level = 0; level < bits.length; level++) {
+			long[] words = bits[level];
+			boolean wasEmpty = (words[index / 64] == 0);
+
+			words[index / 64] |= 1L << (index % 64);
+
+			if (!wasEmpty)
+				break;
+
+			index /= 64;
+		}
+	}
+
+	/**
+	 * Mark a frame in use, clearing the bit of each level above where a word
+	 * becomes empty.
+	 */
+	private void setUsed(int frame) {
+		int index = frame;
+
+		for (int level = 0; level < bits.length; level++) {
+			long[] words = bits[level];
+
+			words[index / 64] &= ~(1L << (index % 64));
+
+			if (words[index / 64] != 0)
+				break;
+
+			index /= 64;
+		}
+	}
+
+	private int numFrames;
+	private int numFree;
+
+	/**
+	 * The levels of the bitmap, from the frames at <tt>bits[0]</tt> up to a
+	 * single word.
+	 */
+	private long[][] bits;
+}
@@ -0,0 +1,134 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A table mapping process IDs to processes. Processes are kept in an array of
+ * slots, and a process ID is made of the slot number and the slot's
+ * generation, which goes up every time the slot is freed, so the ID of a
+ * process that has been removed does not find the next process to use the
+ * same slot. Free slots are kept on a stack, so adding, looking up and
+ * removing a process all take constant time.
+ *
+ * <p>
+ * The table does no synchronization of its own; callers hold
+ * <tt>UserKernel.processLock</tt>.
+ */
+public class ProcessTable {
+	/**
+	 * Allocate a new, empty process table. The first process added gets ID
+	 * 0.
+	 */
+	public ProcessTable() {
+		processes = new UserProcess[initialSlots];
+		generations = new int[initialSlots];
+		freeSlots = new int[initialSlots];
+
+		pushFreeSlots(0, initialSlots);
+	}
+
+	/**
+	 * Add a process to the table, growing it if every slot is in use.
+	 *
+	 * @param	process	the process to add.
+	 * @return	the ID of the process.
+	 */
+	public int add(UserProcess process) {
+		Lib.assertTrue(process != null);
+
+		if (numFree == 0)
+			grow();
+
+		int slot = freeSlots[--numFree];
+		processes[slot] = process;
+		size++;
+
+		return (generations[slot] << slotBits) | slot;
+	}
+
+	/**
+	 * Return the process with the specified ID.
+	 *
+	 * @param	pid	the ID of the process.
+	 * @return	the process, or <tt>null</tt> if no process in the table has
+	 *		this ID.
+	 */
+	public UserProcess get(int pid) {
+		if (pid < 0)
+			return null;
+
+		int slot = pid & slotMask;
+		if (slot >= processes.length || generations[slot] != (pid >>> slotBits))
+			return null;
+
+		return processes[slot];
+	}
+
+	/**
+	 * Remove the process with the specified ID from the table.
+	 *
+	 * @param	pid	the ID of the process.
+	 * @return	<tt>true</tt> if the process was in the table.
+	 */
+	public boolean remove(int pid) {
+		if (get(pid) == null)
+			return false;
+
+		int slot = pid & slotMask;
+		processes[slot] = null;
+		generations[slot] = (generations[slot] + 1) & generationMask;
+		freeSlots[numFree++] = slot;
+		size--;
+
+		return true;
+	}
+
+	/**
+	 * Return the number of processes in the table.
+	 *
+	 * @return	the number of processes.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Double the number of slots. Only called when no slot is free.
+	 */
+	private void grow() {
+		int oldSlots = processes.length;
+		Lib.assertTrue(oldSlots < maxSlots, "process table full");
+
+		int newSlots = Math.min(oldSlots * 2, maxSlots);
+
+		processes = Arrays.copyOf(processes, newSlots);
+		generations = Arrays.copyOf(generations, newSlots);
+		freeSlots = new int[newSlots];
+
+		pushFreeSlots(oldSlots, newSlots);
+	}
+
+	/**
+	 * Push slots <i>first</i> through <i>last</i> - 1 on the free stack, the
+	 * lowest on top.
+	 */
+	private void pushFreeSlots(int first, int last) {
+		for (int slot = last - 1; slot >= first; slot--)
+			freeSlots[numFree++] = slot;
+	}
+
+	private UserProcess[] processes;
+	private int[] generations;
+	private int[] freeSlots;
+	private int numFree = 0;
+	private int size = 0;
+
+	private static final int initialSlots = 16;
+	private static final int slotBits = 16;
+	private static final int slotMask = (1 << slotBits) - 1;
+	private static final int maxSlots = 1 << slotBits;
+	/** Keeps process IDs non-negative. */
+	private static final int generationMask = (1 << (31 - slotBits)) - 1;
+}
@@ -45,12 +45,11 @@ public class UserKernel extends ThreadedKernel {
 			public void run() { exceptionHandler(); }
 		});
 		
-		memoryLock = new Lock();
-		memoryList = new LinkedList<Integer>();
-		
-		for (int i = 0; i < Machine.processor().getNumPhysPages(); i++) {
-			memoryList.add(i);
-		}
+		memoryLock = new Lock("UserKernel.memoryLock");
+		frameAllocator = new FrameAllocator(Machine.processor().getNumPhysPages());
+
+		processLock = new Lock("UserKernel.processLock");
+		processTable = new ProcessTable();
 
 	}
 
@@ -134,11 +133,14 @@ public class UserKernel extends ThreadedKernel {
 	
 	// 1213 update;
 	public static Lock memoryLock;
-	public static LinkedList<Integer> memoryList;
+	/** The free physical pages. Guarded by <tt>memoryLock</tt>. */
+	public static FrameAllocator frameAllocator;
 	
 	
-	// Globally accessible process list
-	public static LinkedList <UserProcess> processList;
+	// Globally accessible process table
+	public static Lock processLock;
+	/** The processes by ID. Guarded by <tt>processLock</tt>. */
+	public static ProcessTable processTable;
 	
 	
 	// and to store free physical page number;
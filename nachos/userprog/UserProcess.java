@@ -27,7 +27,10 @@ public class UserProcess {
 	 */
 	public UserProcess() {
 
-		pID = processCounter++;
+		UserKernel.processLock.acquire();
+		pID = UserKernel.processTable.add(this);
+		UserKernel.processLock.release();
+
 		runningProcessCounter++;
 
 		// stdin and stdout;
@@ -174,25 +177,22 @@ public class UserProcess {
 	protected boolean loadSections() {
 
 		UserKernel.memoryLock.acquire();
+		int[] frames = UserKernel.frameAllocator.allocate(numPages);
+		UserKernel.memoryLock.release();
 
-		if (numPages > UserKernel.memoryList.size()) {
+		if (frames == null) {
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 
-			UserKernel.memoryLock.release();
-
 			return false;
 		}
 
 		pageTable = new TranslationEntry[numPages];
 
 		for (int i = 0; i < numPages; i++) {
-			int pageNext = UserKernel.memoryList.remove();
-			pageTable[i] = new TranslationEntry(i, pageNext, true, false, false, false);
+			pageTable[i] = new TranslationEntry(i, frames[i], true, false, false, false);
 		}
 
-		UserKernel.memoryLock.release();
-
 
 		// load sections
 		// modified; 
@@ -442,6 +442,63 @@ public class UserProcess {
 		return transByte;
 
 	}
+
+	/**
+	 * Return the physical address that virtual address <i>vaddr</i> maps to,
+	 * or -1 if it is not mapped, or if it is read-only and <i>write</i> is
+	 * set.
+	 *
+	 * @param	vaddr	the virtual address to translate.
+	 * @param	write	<tt>true</tt> if the address will be written to.
+	 * @return	the physical address, or -1.
+	 */
+	private int translate(int vaddr, boolean write) {
+		if (vaddr < 0) {
+			return -1;
+		}
+
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (vpn >= pageTable.length) {
+			return -1;
+		}
+
+		TranslationEntry entry = pageTable[vpn];
+		if (entry == null || !entry.valid || (write && entry.readOnly)) {
+			return -1;
+		}
+
+		return entry.ppn * pageSize + Processor.offsetFromAddress(vaddr);
+	}
+
+	/**
+	 * Test whether every page of the <i>length</i> bytes of virtual memory
+	 * starting at <i>vaddr</i> is mapped, and writable if <i>write</i> is set.
+	 *
+	 * @param	vaddr	the first byte of the buffer.
+	 * @param	length	the length of the buffer.
+	 * @param	write	<tt>true</tt> if the buffer will be written to.
+	 * @return	<tt>true</tt> if the whole buffer may be accessed.
+	 */
+	private boolean validBuffer(int vaddr, int length, boolean write) {
+		if (length == 0) {
+			return true;
+		}
+
+		int last = vaddr + length - 1;
+		if (vaddr < 0 || last < vaddr) {
+			return false;
+		}
+
+		// one address per page is enough;
+		for (int page = Processor.pageFromAddress(vaddr);
+				page <= Processor.pageFromAddress(last); page++) {
+			if (translate(Processor.makeAddress(page, 0), write) < 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
 	
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
@@ -451,7 +508,7 @@ public class UserProcess {
 		UserKernel.memoryLock.acquire();
 
 		for (int i = 0; i < numPages; i++) {
-			UserKernel.memoryList.add(pageTable[i].ppn);
+			UserKernel.frameAllocator.free(pageTable[i].ppn);
 			pageTable[i] = null;
 		}
 
@@ -605,17 +662,22 @@ public class UserProcess {
 		// child processes and add to new processes;
 		UserProcess process = UserProcess.newUserProcess();
 
+		// link the child before it runs, so it cannot exit unnoticed;
+		UserKernel.processLock.acquire();
+		addChild(process);
+		UserKernel.processLock.release();
+
 		// and execute;
 		if (!process.execute(file, args)) {
 			// fails to open the file;
+			UserKernel.processLock.acquire();
+			removeChild(process);
+			UserKernel.processTable.remove(process.pID);
+			UserKernel.processLock.release();
+
 			return -1;
 		}
 
-		process.parent = this;
-
-		// add childrenProcess to list;
-		children.add(process);
-
 		return process.pID;
 
 	}
@@ -635,18 +697,32 @@ public class UserProcess {
 		this.status = status;
 		exitStat = true;	// exit normally;
 
-		// if there's parent proces, enter from parent's side and awake;
-		if (parent != null) {
-			joinLock.acquire();
-			joinCond.wake();
-			joinLock.release();
+		// now free memory;
+		unloadSections();
+
+		UserKernel.processLock.acquire();
 
-			parent.children.remove(this);
+		// children no longer have a parent; reap the ones already exited;
+		while (firstChild != null) {
+			UserProcess child = firstChild;
+			removeChild(child);
 
+			if (child.exited) {
+				UserKernel.processTable.remove(child.pID);
+			}
 		}
 
-		// now free memory;
-		unloadSections();
+		exited = true;
+
+		// if there's parent proces, stay until it joins and awake it;
+		if (parent != null) {
+			joinCond.wakeAll();
+		}
+		else {
+			UserKernel.processTable.remove(pID);
+		}
+
+		UserKernel.processLock.release();
 
 		// and mark process as done;
 		KThread.finish();
@@ -657,33 +733,31 @@ public class UserProcess {
 			Machine.halt();
 		}
 
-		processCounter--;
-
 		return 0;
 	}
 	
 	
 
 	private int handleJoin(int pID, int statAddr) {
-		UserProcess process = null;
+		UserKernel.processLock.acquire();
 
 		// make sure join's process is child;
-		for (int i = 0; i < children.size(); i++) {
-			if (pID == children.get(i).pID) {
-				// if it is this process then return;
-				process = children.get(i);
-				break;
-			}
-		}
+		UserProcess process = UserKernel.processTable.get(pID);
 
-		if (process == null || process.thread == null) {
+		if (process == null || process.parent != this) {
+			UserKernel.processLock.release();
 			return -1;
 		}
 
-		// now acquire lock and sleep;
-		process.joinLock.acquire();
-		process.joinCond.sleep();
-		process.joinLock.release();
+		// now sleep until it exits, and reap it;
+		while (!process.exited) {
+			process.joinCond.sleep();
+		}
+
+		removeChild(process);
+		UserKernel.processTable.remove(pID);
+
+		UserKernel.processLock.release();
 
 		byte[] childStats = new byte[4];
 
@@ -701,6 +775,43 @@ public class UserProcess {
 
 	}
 
+	/**
+	 * Make <i>child</i> a child of this process. The caller must hold
+	 * <tt>UserKernel.processLock</tt>.
+	 */
+	private void addChild(UserProcess child) {
+		child.parent = this;
+		child.prevSibling = null;
+		child.nextSibling = firstChild;
+
+		if (firstChild != null) {
+			firstChild.prevSibling = child;
+		}
+		firstChild = child;
+	}
+
+	/**
+	 * Unlink <i>child</i> from the children of this process. The caller must
+	 * hold <tt>UserKernel.processLock</tt>.
+	 */
+	private void removeChild(UserProcess child) {
+		Lib.assertTrue(child.parent == this);
+
+		if (child.prevSibling != null) {
+			child.prevSibling.nextSibling = child.nextSibling;
+		}
+		else {
+			firstChild = child.nextSibling;
+		}
+
+		if (child.nextSibling != null) {
+			child.nextSibling.prevSibling = child.prevSibling;
+		}
+
+		child.parent = null;
+		child.prevSibling = child.nextSibling = null;
+	}
+
 	private int searchSpace() {
 		// should find the suitable space and return available space;
 		for (int i = 0; i < 16; i++) {
@@ -773,53 +884,78 @@ public class UserProcess {
 	private int handleRead(int fileDescriptor, int bufferAddr, int length) {
 		// handle read();
 
-		if (openFile[fileDescriptor] == null || fileDescriptor > 15 || fileDescriptor < 0) {
+		if (fileDescriptor > 15 || fileDescriptor < 0 || openFile[fileDescriptor] == null) {
 			// return error;
 			return -1;
 		}
 
-		byte temp[] = new byte[length];
+		// the whole buffer must be writable before anything is read;
+		if (length < 0 || !validBuffer(bufferAddr, length, true)) {
+			return -1;
+		}
 
-		// for reading file;
-		int read = openFile[fileDescriptor].read(temp, 0, length);
+		byte[] memory = Machine.processor().getMemory();
+		int transByte = 0;
 
-		// couldn't read data;
-		if(read <= 0) {
-			return 0;
+		// read straight into the physical pages behind the buffer, one page at a time;
+		while (transByte < length) {
+			int vaddr = bufferAddr + transByte;
+			int amount = Math.min(pageSize - Processor.offsetFromAddress(vaddr),
+					length - transByte);
+
+			int read = openFile[fileDescriptor].read(memory,
+					translate(vaddr, true), amount);
+
+			// couldn't read data;
+			if (read < 0) {
+				return (transByte > 0) ? transByte : -1;
+			}
+
+			transByte += read;
+
+			// end of file, or no more input for now;
+			if (read < amount) {
+				break;
+			}
 		}
 
-		int write = writeVirtualMemory(bufferAddr, temp);
-		return write;
+		return transByte;
 	}	
 
 	private int handleWrite(int fileDescriptor, int bufferAddr, int length) {
 		// write data from virtual memory address into the file;
 
 		// should not be greater than 15 or less than 0;
-		if (openFile[fileDescriptor] == null || fileDescriptor > 15 || fileDescriptor < 0) {
+		if (fileDescriptor > 15 || fileDescriptor < 0 || openFile[fileDescriptor] == null) {
 			return -1;
 		}
 
-		byte temp[] = new byte[length];
+		if (length < 0 || !validBuffer(bufferAddr, length, false)) {
+			return -1;
+		}
 
-		// store data into the temp buffer table;
-		int read = readVirtualMemory(bufferAddr, temp);
+		byte[] memory = Machine.processor().getMemory();
+		int transByte = 0;
 
-		if (read <= 0) {
-			// no data read;
-			return 0;
-		}
+		// write straight from the physical pages behind the buffer, one page at a time;
+		while (transByte < length) {
+			int vaddr = bufferAddr + transByte;
+			int amount = Math.min(pageSize - Processor.offsetFromAddress(vaddr),
+					length - transByte);
 
-		// now write the data in;
-		int write = openFile[fileDescriptor].write(temp, 0, length);
+			int write = openFile[fileDescriptor].write(memory,
+					translate(vaddr, false), amount);
 
-		if (write < length) {
-			// error occurred when writing, return error;
-			return -1;
+			if (write < amount) {
+				// error occurred when writing, return error;
+				return -1;
+			}
+
+			transByte += write;
 		}
 
 		// return written; 
-		return write;
+		return transByte;
 	}
 
 	private int handleClose(int fileDescriptor) {
@@ -883,15 +1019,20 @@ public class UserProcess {
 	private UThread thread = null;
 
 	protected OpenFile[] openFile = new OpenFile[16]; 
-	public LinkedList <UserProcess> children = new LinkedList();
 	public UserProcess parent = null;
 
-	private static int processCounter = 0; // counts the process;
+	// children as a list linked through the children themselves, so
+	// linking and unlinking one takes constant time;
+	// guarded by UserKernel.processLock;
+	private UserProcess firstChild = null;
+	private UserProcess prevSibling = null;
+	private UserProcess nextSibling = null;
+	private boolean exited = false;
+
 	private static int runningProcessCounter = 0; // counts running process;
 
-	// assuming lock is needed;
-	protected Lock joinLock = new Lock();
-	protected Condition joinCond = new Condition(joinLock);
+	// woken when this process exits;
+	protected Condition joinCond = new Condition(UserKernel.processLock);
 
 	/** The program being run by this process. */
 	protected Coff coff;